@@ -0,0 +1,198 @@
+package com.budlee.jlox;
+
+/**
+ * What an Expr.Binary does with its operands.
+ *
+ * Every node starts UNINITIALIZED and on its first execution rewrites itself to the operation for the operator
+ * and the operand types it saw, so a hot arithmetic node only does one type check. If the types later change
+ * the node rewrites itself to the GENERIC operation, which handles everything, and stays there. Once its guard
+ * has passed a specialized operation computes on the unboxed operands itself; the GENERIC operation and every
+ * type error go through the CompiledRuntime's checked operations, so every backend reports errors the same way.
+ */
+abstract class BinaryOperation {
+	static final BinaryOperation UNINITIALIZED = new BinaryOperation() {
+		@Override
+		Object execute(Expr.Binary expr, Object left, Object right) {
+			expr.operation = specialize(expr.operator.tokenType, left, right);
+			return expr.operation.execute(expr, left, right);
+		}
+	};
+
+	static final BinaryOperation GENERIC = new BinaryOperation() {
+		@Override
+		Object execute(Expr.Binary expr, Object left, Object right) {
+			switch (expr.operator.tokenType) {
+			case GREATER:
+				return CompiledRuntime.greater(left, right, expr.operator);
+			case GREATER_EQUAL:
+				return CompiledRuntime.greaterEqual(left, right, expr.operator);
+			case LESS:
+				return CompiledRuntime.less(left, right, expr.operator);
+			case LESS_EQUAL:
+				return CompiledRuntime.lessEqual(left, right, expr.operator);
+			case BANG_EQUAL:
+				return CompiledRuntime.notEqual(left, right);
+			case EQUAL_EQUAL:
+				return CompiledRuntime.equal(left, right);
+			case MINUS:
+				return CompiledRuntime.subtract(left, right, expr.operator);
+			case SLASH:
+				return CompiledRuntime.divide(left, right, expr.operator);
+			case STAR:
+				return CompiledRuntime.multiply(left, right, expr.operator);
+			case PLUS:
+				return CompiledRuntime.add(left, right, expr.operator);
+			}
+			return null;
+		}
+	};
+
+	abstract Object execute(Expr.Binary expr, Object left, Object right);
+
+	private static BinaryOperation specialize(TokenType operator, Object left, Object right) {
+		if (operator == TokenType.EQUAL_EQUAL) {
+			return EQUAL;
+		}
+		if (operator == TokenType.BANG_EQUAL) {
+			return NOT_EQUAL;
+		}
+		if (left instanceof String && right instanceof String && operator == TokenType.PLUS) {
+			return STRING_CONCATENATE;
+		}
+		if (!(left instanceof Double && right instanceof Double)) {
+			return GENERIC;
+		}
+		switch (operator) {
+		case PLUS:
+			return NUMBER_ADD;
+		case MINUS:
+			return NUMBER_SUBTRACT;
+		case STAR:
+			return NUMBER_MULTIPLY;
+		case SLASH:
+			return NUMBER_DIVIDE;
+		case GREATER:
+			return NUMBER_GREATER;
+		case GREATER_EQUAL:
+			return NUMBER_GREATER_EQUAL;
+		case LESS:
+			return NUMBER_LESS;
+		case LESS_EQUAL:
+			return NUMBER_LESS_EQUAL;
+		}
+		return GENERIC;
+	}
+
+	/**
+	 * Called when a specialized node sees operands it was not specialized for.
+	 */
+	private static Object generalize(Expr.Binary expr, Object left, Object right) {
+		expr.operation = GENERIC;
+		return GENERIC.execute(expr, left, right);
+	}
+
+	private static final BinaryOperation EQUAL = new BinaryOperation() {
+		@Override
+		Object execute(Expr.Binary expr, Object left, Object right) {
+			return CompiledRuntime.equal(left, right);
+		}
+	};
+
+	private static final BinaryOperation NOT_EQUAL = new BinaryOperation() {
+		@Override
+		Object execute(Expr.Binary expr, Object left, Object right) {
+			return CompiledRuntime.notEqual(left, right);
+		}
+	};
+
+	private static final BinaryOperation STRING_CONCATENATE = new BinaryOperation() {
+		@Override
+		Object execute(Expr.Binary expr, Object left, Object right) {
+			if (left instanceof String && right instanceof String) {
+				return (String) left + (String) right;
+			}
+			return generalize(expr, left, right);
+		}
+	};
+
+	private static final BinaryOperation NUMBER_ADD = new BinaryOperation() {
+		@Override
+		Object execute(Expr.Binary expr, Object left, Object right) {
+			if (left instanceof Double && right instanceof Double) {
+				return Numbers.box((double) left + (double) right);
+			}
+			return generalize(expr, left, right);
+		}
+	};
+
+	private static final BinaryOperation NUMBER_SUBTRACT = new BinaryOperation() {
+		@Override
+		Object execute(Expr.Binary expr, Object left, Object right) {
+			if (left instanceof Double && right instanceof Double) {
+				return Numbers.box((double) left - (double) right);
+			}
+			return generalize(expr, left, right);
+		}
+	};
+
+	private static final BinaryOperation NUMBER_MULTIPLY = new BinaryOperation() {
+		@Override
+		Object execute(Expr.Binary expr, Object left, Object right) {
+			if (left instanceof Double && right instanceof Double) {
+				return Numbers.box((double) left * (double) right);
+			}
+			return generalize(expr, left, right);
+		}
+	};
+
+	private static final BinaryOperation NUMBER_DIVIDE = new BinaryOperation() {
+		@Override
+		Object execute(Expr.Binary expr, Object left, Object right) {
+			if (left instanceof Double && right instanceof Double && (double) right != 0.0) {
+				return Numbers.box((double) left / (double) right);
+			}
+			return generalize(expr, left, right);
+		}
+	};
+
+	private static final BinaryOperation NUMBER_GREATER = new BinaryOperation() {
+		@Override
+		Object execute(Expr.Binary expr, Object left, Object right) {
+			if (left instanceof Double && right instanceof Double) {
+				return (double) left > (double) right;
+			}
+			return generalize(expr, left, right);
+		}
+	};
+
+	private static final BinaryOperation NUMBER_GREATER_EQUAL = new BinaryOperation() {
+		@Override
+		Object execute(Expr.Binary expr, Object left, Object right) {
+			if (left instanceof Double && right instanceof Double) {
+				return (double) left >= (double) right;
+			}
+			return generalize(expr, left, right);
+		}
+	};
+
+	private static final BinaryOperation NUMBER_LESS = new BinaryOperation() {
+		@Override
+		Object execute(Expr.Binary expr, Object left, Object right) {
+			if (left instanceof Double && right instanceof Double) {
+				return (double) left < (double) right;
+			}
+			return generalize(expr, left, right);
+		}
+	};
+
+	private static final BinaryOperation NUMBER_LESS_EQUAL = new BinaryOperation() {
+		@Override
+		Object execute(Expr.Binary expr, Object left, Object right) {
+			if (left instanceof Double && right instanceof Double) {
+				return (double) left <= (double) right;
+			}
+			return generalize(expr, left, right);
+		}
+	};
+
+}
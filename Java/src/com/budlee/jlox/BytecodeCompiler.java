@@ -0,0 +1,679 @@
+package com.budlee.jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Compiles a parsed and resolved program into chunks for the VM.
+ *
+ * The Resolver has already reported every static error, so this only has to work out where each variable lives:
+ * locals are slots on the VM stack, variables of an enclosing function are upvalues and everything else is a global.
+ */
+public class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+	private static final int MAX_LOCALS = 256;
+	private static final int MAX_UPVALUES = 256;
+	/**
+	 * How many slots each instruction adds to the stack, or removes if negative. The calls take their argument
+	 * count off on top of this when they are emitted.
+	 */
+	private static final int[] STACK_EFFECTS = new int[OpCode.TAIL_SUPER_INVOKE + 1];
+
+	static {
+		for (byte op : new byte[]{OpCode.CONSTANT, OpCode.NIL, OpCode.TRUE, OpCode.FALSE, OpCode.GET_LOCAL,
+				OpCode.GET_GLOBAL, OpCode.GET_UPVALUE, OpCode.CLOSURE, OpCode.CLASS}) {
+			STACK_EFFECTS[op] = 1;
+		}
+		for (byte op : new byte[]{OpCode.POP, OpCode.DEFINE_GLOBAL, OpCode.SET_PROPERTY, OpCode.GET_SUPER,
+				OpCode.EQUAL, OpCode.NOT_EQUAL, OpCode.GREATER, OpCode.GREATER_EQUAL, OpCode.LESS,
+				OpCode.LESS_EQUAL, OpCode.ADD, OpCode.SUBTRACT, OpCode.MULTIPLY, OpCode.DIVIDE, OpCode.PRINT,
+				OpCode.SUPER_INVOKE, OpCode.TAIL_SUPER_INVOKE, OpCode.CLOSE_UPVALUE, OpCode.RETURN,
+				OpCode.INHERIT, OpCode.METHOD}) {
+			STACK_EFFECTS[op] = -1;
+		}
+	}
+
+	private enum FunctionType {
+		SCRIPT,
+		FUNCTION,
+		METHOD,
+		INITIALIZER
+	}
+
+	private static class Local {
+		final String name;
+		final int depth;
+		boolean isCaptured = false;
+
+		Local(String name, int depth) {
+			this.name = name;
+			this.depth = depth;
+		}
+	}
+
+	private static class Upvalue {
+		final int index;
+		final boolean isLocal;
+
+		Upvalue(int index, boolean isLocal) {
+			this.index = index;
+			this.isLocal = isLocal;
+		}
+	}
+
+	/**
+	 * Book keeping for the function currently being compiled, they form a chain out to the top level script.
+	 */
+	private static class FunctionState {
+		final FunctionState enclosing;
+		final VmFunction function;
+		final FunctionType type;
+		final List<Local> locals = new ArrayList<>();
+		final List<Upvalue> upvalues = new ArrayList<>();
+		int scopeDepth = 0;
+		/**
+		 * The slots the function's frame has in use at the instruction being emitted, its locals included.
+		 */
+		int stackDepth = 1;
+
+		FunctionState(FunctionState enclosing, VmFunction function, FunctionType type) {
+			this.enclosing = enclosing;
+			this.function = function;
+			this.type = type;
+			// Slot zero holds the callee, or the receiver for methods.
+			locals.add(new Local(type == FunctionType.FUNCTION || type == FunctionType.SCRIPT ? "" : "this", 0));
+		}
+	}
+
+	private final GlobalEnvironment globals;
+	private FunctionState current;
+	private int line = 1;
+	private boolean hadError = false;
+
+	/**
+	 * @param globals where the globals the program uses are given the indices their instructions hold
+	 */
+	BytecodeCompiler(GlobalEnvironment globals) {
+		this.globals = globals;
+	}
+
+	/**
+	 * @return the script's function, or null if the program broke one of the limits of the VM's instructions
+	 */
+	VmFunction compile(List<Stmt> statements) {
+		current = new FunctionState(null, new VmFunction(null), FunctionType.SCRIPT);
+		for (Stmt statement : statements) {
+			compile(statement);
+		}
+		emitReturn();
+		return hadError ? null : current.function;
+	}
+
+	@Override
+	public Void visitBlockStmt(Stmt.Block stmt) {
+		beginScope();
+		for (Stmt statement : stmt.statements) {
+			compile(statement);
+		}
+		endScope();
+		return null;
+	}
+
+	@Override
+	public Void visitClassStmt(Stmt.Class stmt) {
+		line = stmt.name.line;
+		final int nameConstant = makeConstant(stmt.name.lexme);
+		emitOp(OpCode.CLASS);
+		emitShort(nameConstant);
+		defineVariable(stmt.name, declareVariable(stmt.name));
+
+		if (Objects.nonNull(stmt.superclass)) {
+			beginScope();
+			compile(stmt.superclass);
+			addLocal("super");
+			namedVariable(stmt.name, OpCode.GET_LOCAL, OpCode.GET_UPVALUE, OpCode.GET_GLOBAL);
+			line = stmt.superclass.name.line;
+			emitOp(OpCode.INHERIT);
+		}
+
+		namedVariable(stmt.name, OpCode.GET_LOCAL, OpCode.GET_UPVALUE, OpCode.GET_GLOBAL);
+		for (Stmt.Function method : stmt.methods) {
+			final FunctionType type = method.name.lexme.equals("init") ? FunctionType.INITIALIZER : FunctionType.METHOD;
+			function(method, type);
+			emitOp(OpCode.METHOD);
+			emitShort(makeConstant(method.name.lexme));
+		}
+		emitOp(OpCode.POP);
+
+		if (Objects.nonNull(stmt.superclass)) {
+			endScope();
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitExpressionStmt(Stmt.Expression stmt) {
+		compile(stmt.expression);
+		emitOp(OpCode.POP);
+		return null;
+	}
+
+	@Override
+	public Void visitFunctionStmt(Stmt.Function stmt) {
+		line = stmt.name.line;
+		final int global = declareVariable(stmt.name);
+		if (current.scopeDepth > 0) {
+			// A local function can refer to itself, so its slot exists before the body is compiled.
+			addLocal(stmt.name.lexme);
+			function(stmt, FunctionType.FUNCTION);
+			return null;
+		}
+		function(stmt, FunctionType.FUNCTION);
+		defineVariable(stmt.name, global);
+		return null;
+	}
+
+	@Override
+	public Void visitIfStmt(Stmt.If stmt) {
+		compile(stmt.condition);
+		final int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+		emitOp(OpCode.POP);
+		compile(stmt.thenBranch);
+		final int elseJump = emitJump(OpCode.JUMP);
+		patchJump(thenJump);
+		// The condition is still on the stack where the else branch starts.
+		adjustStack(1);
+		emitOp(OpCode.POP);
+		if (Objects.nonNull(stmt.elseBranch)) {
+			compile(stmt.elseBranch);
+		}
+		patchJump(elseJump);
+		return null;
+	}
+
+	@Override
+	public Void visitPrintStmt(Stmt.Print stmt) {
+		compile(stmt.expression);
+		emitOp(OpCode.PRINT);
+		return null;
+	}
+
+	@Override
+	public Void visitReturnStmt(Stmt.Return stmt) {
+		line = stmt.keyword.line;
+		if (current.type == FunctionType.INITIALIZER) {
+			emitOp(OpCode.GET_LOCAL);
+			emitByte((byte) 0);
+		}
+		else if (stmt.tailCall) {
+			call((Expr.Call) stmt.value, true);
+		}
+		else if (Objects.nonNull(stmt.value)) {
+			compile(stmt.value);
+		}
+		else {
+			emitOp(OpCode.NIL);
+		}
+		emitOp(OpCode.RETURN);
+		return null;
+	}
+
+	@Override
+	public Void visitVarStmt(Stmt.Var stmt) {
+		line = stmt.name.line;
+		final int global = declareVariable(stmt.name);
+		if (Objects.nonNull(stmt.initializer)) {
+			compile(stmt.initializer);
+		}
+		else {
+			emitOp(OpCode.NIL);
+		}
+		defineVariable(stmt.name, global);
+		return null;
+	}
+
+	@Override
+	public Void visitWhileStmt(Stmt.While stmt) {
+		final int loopStart = current.function.chunk.count;
+		compile(stmt.condition);
+		final int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+		emitOp(OpCode.POP);
+		compile(stmt.body);
+		emitLoop(loopStart);
+		patchJump(exitJump);
+		adjustStack(1);
+		emitOp(OpCode.POP);
+		return null;
+	}
+
+	@Override
+	public Void visitAssignExpr(Expr.Assign expr) {
+		compile(expr.value);
+		line = expr.name.line;
+		namedVariable(expr.name, OpCode.SET_LOCAL, OpCode.SET_UPVALUE, OpCode.SET_GLOBAL);
+		return null;
+	}
+
+	@Override
+	public Void visitBinaryExpr(Expr.Binary expr) {
+		compile(expr.left);
+		compile(expr.right);
+		line = expr.operator.line;
+		switch (expr.operator.tokenType) {
+		case GREATER:
+			emitOp(OpCode.GREATER);
+			break;
+		case GREATER_EQUAL:
+			emitOp(OpCode.GREATER_EQUAL);
+			break;
+		case LESS:
+			emitOp(OpCode.LESS);
+			break;
+		case LESS_EQUAL:
+			emitOp(OpCode.LESS_EQUAL);
+			break;
+		case BANG_EQUAL:
+			emitOp(OpCode.NOT_EQUAL);
+			break;
+		case EQUAL_EQUAL:
+			emitOp(OpCode.EQUAL);
+			break;
+		case MINUS:
+			emitOp(OpCode.SUBTRACT);
+			break;
+		case SLASH:
+			emitOp(OpCode.DIVIDE);
+			break;
+		case STAR:
+			emitOp(OpCode.MULTIPLY);
+			break;
+		case PLUS:
+			emitOp(OpCode.ADD);
+			break;
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitCallExpr(Expr.Call expr) {
+		call(expr, false);
+		return null;
+	}
+
+	/**
+	 * @param tail whether the call's result is returned, when it is made in the caller's frame
+	 */
+	private void call(Expr.Call expr, boolean tail) {
+		if (expr.callee instanceof Expr.Get) {
+			// Calling a method straight away does not need the bound method the Get would create.
+			final Expr.Get get = (Expr.Get) expr.callee;
+			compile(get.object);
+			compileArguments(expr);
+			line = get.name.line;
+			emitOp(tail ? OpCode.TAIL_INVOKE : OpCode.INVOKE);
+			emitShort(makeConstant(get.name.lexme));
+			emitByte((byte) expr.arguments.size());
+			adjustStack(-expr.arguments.size());
+			return;
+		}
+		if (expr.callee instanceof Expr.Super) {
+			final Expr.Super superExpr = (Expr.Super) expr.callee;
+			namedVariable(new Token(TokenType.THIS, "this", null, superExpr.keyword.line),
+					OpCode.GET_LOCAL, OpCode.GET_UPVALUE, OpCode.GET_GLOBAL);
+			compileArguments(expr);
+			namedVariable(superExpr.keyword, OpCode.GET_LOCAL, OpCode.GET_UPVALUE, OpCode.GET_GLOBAL);
+			line = superExpr.method.line;
+			emitOp(tail ? OpCode.TAIL_SUPER_INVOKE : OpCode.SUPER_INVOKE);
+			emitShort(makeConstant(superExpr.method.lexme));
+			emitByte((byte) expr.arguments.size());
+			adjustStack(-expr.arguments.size());
+			return;
+		}
+		compile(expr.callee);
+		compileArguments(expr);
+		line = expr.paren.line;
+		emitOp(tail ? OpCode.TAIL_CALL : OpCode.CALL);
+		emitByte((byte) expr.arguments.size());
+		adjustStack(-expr.arguments.size());
+	}
+
+	private void compileArguments(Expr.Call expr) {
+		for (Expr argument : expr.arguments) {
+			compile(argument);
+		}
+		line = expr.paren.line;
+	}
+
+	@Override
+	public Void visitGetExpr(Expr.Get expr) {
+		compile(expr.object);
+		line = expr.name.line;
+		emitOp(OpCode.GET_PROPERTY);
+		emitShort(makeConstant(expr.name.lexme));
+		return null;
+	}
+
+	@Override
+	public Void visitGroupingExpr(Expr.Grouping expr) {
+		compile(expr.expression);
+		return null;
+	}
+
+	@Override
+	public Void visitLiteralExpr(Expr.Literal expr) {
+		if (Objects.isNull(expr.value)) {
+			emitOp(OpCode.NIL);
+		}
+		else if (expr.value.equals(Boolean.TRUE)) {
+			emitOp(OpCode.TRUE);
+		}
+		else if (expr.value.equals(Boolean.FALSE)) {
+			emitOp(OpCode.FALSE);
+		}
+		else {
+			emitOp(OpCode.CONSTANT);
+			emitShort(makeConstant(expr.value));
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitLogicalExpr(Expr.Logical expr) {
+		compile(expr.left);
+		if (expr.operator.tokenType == TokenType.OR) {
+			final int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+			final int endJump = emitJump(OpCode.JUMP);
+			patchJump(elseJump);
+			emitOp(OpCode.POP);
+			compile(expr.right);
+			patchJump(endJump);
+		}
+		else {
+			final int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+			emitOp(OpCode.POP);
+			compile(expr.right);
+			patchJump(endJump);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitSetExpr(Expr.Set expr) {
+		compile(expr.object);
+		compile(expr.value);
+		line = expr.name.line;
+		emitOp(OpCode.SET_PROPERTY);
+		emitShort(makeConstant(expr.name.lexme));
+		return null;
+	}
+
+	@Override
+	public Void visitSuperExpr(Expr.Super expr) {
+		namedVariable(new Token(TokenType.THIS, "this", null, expr.keyword.line),
+				OpCode.GET_LOCAL, OpCode.GET_UPVALUE, OpCode.GET_GLOBAL);
+		namedVariable(expr.keyword, OpCode.GET_LOCAL, OpCode.GET_UPVALUE, OpCode.GET_GLOBAL);
+		line = expr.method.line;
+		emitOp(OpCode.GET_SUPER);
+		emitShort(makeConstant(expr.method.lexme));
+		return null;
+	}
+
+	@Override
+	public Void visitThisExpr(Expr.This expr) {
+		namedVariable(expr.keyword, OpCode.GET_LOCAL, OpCode.GET_UPVALUE, OpCode.GET_GLOBAL);
+		return null;
+	}
+
+	@Override
+	public Void visitVariableExpr(Expr.Variable expr) {
+		namedVariable(expr.name, OpCode.GET_LOCAL, OpCode.GET_UPVALUE, OpCode.GET_GLOBAL);
+		return null;
+	}
+
+	@Override
+	public Void visitUnaryExpr(Expr.Unary expr) {
+		compile(expr.right);
+		line = expr.operator.line;
+		if (expr.operator.tokenType == TokenType.MINUS) {
+			emitOp(OpCode.NEGATE);
+		}
+		else {
+			emitOp(OpCode.NOT);
+		}
+		return null;
+	}
+
+	private void function(Stmt.Function stmt, FunctionType type) {
+		current = new FunctionState(current, new VmFunction(stmt.name.lexme), type);
+		beginScope();
+		current.function.arity = stmt.params.size();
+		for (Token param : stmt.params) {
+			addLocal(param.lexme);
+		}
+		// The caller has pushed the callee and the arguments.
+		adjustStack(stmt.params.size());
+		for (Stmt statement : stmt.body) {
+			compile(statement);
+		}
+		emitReturn();
+
+		final FunctionState compiled = current;
+		current = compiled.enclosing;
+		line = stmt.name.line;
+		emitOp(OpCode.CLOSURE);
+		emitShort(makeConstant(compiled.function));
+		for (Upvalue upvalue : compiled.upvalues) {
+			emitByte((byte) (upvalue.isLocal ? 1 : 0));
+			emitByte((byte) upvalue.index);
+		}
+	}
+
+	private void namedVariable(Token name, byte localOp, byte upvalueOp, byte globalOp) {
+		line = name.line;
+		int arg = resolveLocal(current, name.lexme);
+		if (arg != -1) {
+			emitOp(localOp);
+			emitByte((byte) arg);
+			return;
+		}
+		arg = resolveUpvalue(current, name);
+		if (arg != -1) {
+			emitOp(upvalueOp);
+			emitByte((byte) arg);
+			return;
+		}
+		emitOp(globalOp);
+		emitShort(global(name));
+	}
+
+	private int resolveLocal(FunctionState state, String name) {
+		for (int i = state.locals.size() - 1; i >= 0; i--) {
+			if (state.locals.get(i).name.equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int resolveUpvalue(FunctionState state, Token name) {
+		if (Objects.isNull(state.enclosing)) {
+			return -1;
+		}
+		final int local = resolveLocal(state.enclosing, name.lexme);
+		if (local != -1) {
+			state.enclosing.locals.get(local).isCaptured = true;
+			return addUpvalue(state, local, true, name);
+		}
+		final int upvalue = resolveUpvalue(state.enclosing, name);
+		if (upvalue != -1) {
+			return addUpvalue(state, upvalue, false, name);
+		}
+		return -1;
+	}
+
+	private int addUpvalue(FunctionState state, int index, boolean isLocal, Token name) {
+		for (int i = 0; i < state.upvalues.size(); i++) {
+			final Upvalue upvalue = state.upvalues.get(i);
+			if (upvalue.index == index && upvalue.isLocal == isLocal) {
+				return i;
+			}
+		}
+		if (state.upvalues.size() == MAX_UPVALUES) {
+			error(name, "Too many closure variables in function.");
+			return 0;
+		}
+		state.upvalues.add(new Upvalue(index, isLocal));
+		state.function.upvalueCount = state.upvalues.size();
+		return state.upvalues.size() - 1;
+	}
+
+	/**
+	 * Locals are only added to the compiler state once their initializer has been compiled,
+	 * the value is then already sitting in the slot the local takes.
+	 *
+	 * @return the index of a global, otherwise -1
+	 */
+	private int declareVariable(Token name) {
+		if (current.scopeDepth > 0) {
+			if (current.locals.size() == MAX_LOCALS) {
+				error(name, "Too many local variables in function.");
+			}
+			return -1;
+		}
+		return global(name);
+	}
+
+	private void defineVariable(Token name, int global) {
+		if (current.scopeDepth > 0) {
+			addLocal(name.lexme);
+			return;
+		}
+		emitOp(OpCode.DEFINE_GLOBAL);
+		emitShort(global);
+	}
+
+	private void addLocal(String name) {
+		current.locals.add(new Local(name, current.scopeDepth));
+	}
+
+	private void beginScope() {
+		current.scopeDepth++;
+	}
+
+	private void endScope() {
+		current.scopeDepth--;
+		final List<Local> locals = current.locals;
+		while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+			if (locals.get(locals.size() - 1).isCaptured) {
+				emitOp(OpCode.CLOSE_UPVALUE);
+			}
+			else {
+				emitOp(OpCode.POP);
+			}
+			locals.remove(locals.size() - 1);
+		}
+	}
+
+	private void compile(Stmt stmt) {
+		stmt.accept(this);
+	}
+
+	private void compile(Expr expr) {
+		expr.accept(this);
+	}
+
+	private int makeConstant(Object value) {
+		final int constant = current.function.chunk.addConstant(value);
+		// Instructions hold a constant's index in two bytes. Only the first constant past that is reported.
+		if (constant > 0xffff) {
+			if (constant == 0x10000) {
+				error(line, "Too many constants in one chunk.");
+			}
+			return 0;
+		}
+		return constant;
+	}
+
+	/**
+	 * @return the index of the global with the name, which the global instructions hold in two bytes
+	 */
+	private int global(Token name) {
+		final int index = globals.indexOf(name.lexme);
+		if (index > 0xffff) {
+			error(name, "Too many global variables.");
+			return 0;
+		}
+		return index;
+	}
+
+	private void error(Token token, String message) {
+		Lox.error(token, message);
+		hadError = true;
+	}
+
+	private void error(int line, String message) {
+		Lox.error(line, message);
+		hadError = true;
+	}
+
+	/**
+	 * Emits an instruction, keeping track of how many slots the frame needs for it.
+	 */
+	private void emitOp(byte op) {
+		emitByte(op);
+		adjustStack(STACK_EFFECTS[op]);
+	}
+
+	private void adjustStack(int effect) {
+		current.stackDepth += effect;
+		if (current.stackDepth > current.function.maxStack) {
+			current.function.maxStack = current.stackDepth;
+		}
+	}
+
+	private void emitByte(byte b) {
+		current.function.chunk.write(b, line);
+	}
+
+	private void emitShort(int value) {
+		emitByte((byte) ((value >> 8) & 0xff));
+		emitByte((byte) (value & 0xff));
+	}
+
+	private void emitReturn() {
+		if (current.type == FunctionType.INITIALIZER) {
+			emitOp(OpCode.GET_LOCAL);
+			emitByte((byte) 0);
+		}
+		else {
+			emitOp(OpCode.NIL);
+		}
+		emitOp(OpCode.RETURN);
+	}
+
+	private int emitJump(byte instruction) {
+		emitOp(instruction);
+		emitByte((byte) 0xff);
+		emitByte((byte) 0xff);
+		return current.function.chunk.count - 2;
+	}
+
+	private void patchJump(int offset) {
+		final Chunk chunk = current.function.chunk;
+		final int jump = chunk.count - offset - 2;
+		if (jump > 0xffff) {
+			error(line, "Too much code to jump over.");
+		}
+		chunk.code[offset] = (byte) ((jump >> 8) & 0xff);
+		chunk.code[offset + 1] = (byte) (jump & 0xff);
+	}
+
+	private void emitLoop(int loopStart) {
+		emitOp(OpCode.LOOP);
+		final int offset = current.function.chunk.count - loopStart + 2;
+		if (offset > 0xffff) {
+			error(line, "Loop body too large.");
+		}
+		emitShort(offset);
+	}
+}
@@ -0,0 +1,47 @@
+package com.budlee.jlox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compiled function body: the instructions, the source line of every byte and the constant pool.
+ */
+class Chunk {
+	byte[] code = new byte[16];
+	int[] lines = new int[16];
+	int count = 0;
+	Object[] constants = new Object[8];
+	private int constantCount = 0;
+	private final Map<Object, Integer> constantIndexes = new HashMap<>();
+
+	void write(byte b, int line) {
+		if (count == code.length) {
+			code = Arrays.copyOf(code, count * 2);
+			lines = Arrays.copyOf(lines, count * 2);
+		}
+		code[count] = b;
+		lines[count] = line;
+		count++;
+	}
+
+	/**
+	 * Numbers and strings are interned so every use of a name or literal in a chunk shares one slot.
+	 *
+	 * @return the index of the value in the constant pool
+	 */
+	int addConstant(Object value) {
+		final boolean interned = value instanceof Double || value instanceof String;
+		if (interned && constantIndexes.containsKey(value)) {
+			return constantIndexes.get(value);
+		}
+		if (constantCount == constants.length) {
+			constants = Arrays.copyOf(constants, constantCount * 2);
+		}
+		constants[constantCount] = value;
+		if (interned) {
+			constantIndexes.put(value, constantCount);
+		}
+		return constantCount++;
+	}
+}
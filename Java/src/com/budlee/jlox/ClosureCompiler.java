@@ -0,0 +1,657 @@
+package com.budlee.jlox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Compiles resolved Lox code into a tree of nodes, each a lambda with its children, slots and operator already
+ * picked, so running the program never goes back through the visitors or switches on a token type.
+ *
+ * Nodes are handed the environment they run in rather than reading it from the Interpreter, and use the same
+ * runtime objects and CompiledRuntime operations as the other backends, so values and errors are the same.
+ */
+final class ClosureCompiler implements Expr.Visitor<ClosureCompiler.ExprNode>, Stmt.Visitor<ClosureCompiler.StmtNode> {
+
+	interface ExprNode {
+		Object evaluate(Environment environment);
+	}
+
+	/**
+	 * Returns Interpreter.NORMAL, or the value of the return statement that ended it.
+	 */
+	interface StmtNode {
+		Object execute(Environment environment);
+	}
+
+	interface NumberNode {
+		double evaluate(Environment environment);
+	}
+
+	private final Interpreter interpreter;
+	private final GlobalEnvironment globals;
+
+	ClosureCompiler(Interpreter interpreter) {
+		this.interpreter = interpreter;
+		this.globals = interpreter.globals;
+	}
+
+	StmtNode compile(List<Stmt> statements) {
+		return sequence(statements);
+	}
+
+	private StmtNode sequence(List<Stmt> statements) {
+		final StmtNode[] nodes = new StmtNode[statements.size()];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = statements.get(i).accept(this);
+		}
+		if (nodes.length == 1) {
+			return nodes[0];
+		}
+		return environment -> {
+			for (StmtNode node : nodes) {
+				final Object completion = node.execute(environment);
+				if (completion != Interpreter.NORMAL) {
+					return completion;
+				}
+			}
+			return Interpreter.NORMAL;
+		};
+	}
+
+	private ExprNode compile(Expr expr) {
+		return expr.accept(this);
+	}
+
+	private StmtNode compile(Stmt stmt) {
+		return stmt.accept(this);
+	}
+
+	private ExprNode variable(Token name, int depth, int slot) {
+		if (depth < 0) {
+			return environment -> globals.get(slot, name);
+		}
+		if (depth == 0) {
+			return environment -> environment.getAt(0, slot);
+		}
+		return environment -> environment.getAt(depth, slot);
+	}
+
+	private StmtNode declare(Token name, int slot, boolean captured, ExprNode value) {
+		if (slot < 0) {
+			final String global = name.lexme;
+			return environment -> {
+				globals.define(global, value.evaluate(environment));
+				return Interpreter.NORMAL;
+			};
+		}
+		if (captured) {
+			return environment -> {
+				environment.enclosing.define(slot, value.evaluate(environment));
+				return Interpreter.NORMAL;
+			};
+		}
+		return environment -> {
+			environment.define(slot, value.evaluate(environment));
+			return Interpreter.NORMAL;
+		};
+	}
+
+	@Override
+	public ExprNode visitAssignExpr(Expr.Assign expr) {
+		final ExprNode value = compile(expr.value);
+		final Token name = expr.name;
+		final int depth = expr.depth;
+		final int slot = expr.slot;
+		if (depth < 0) {
+			return environment -> CompiledRuntime.assignGlobal(interpreter, slot, name, value.evaluate(environment));
+		}
+		return environment -> {
+			final Object result = value.evaluate(environment);
+			environment.assignAt(depth, slot, result);
+			return result;
+		};
+	}
+
+	@Override
+	public ExprNode visitBinaryExpr(Expr.Binary expr) {
+		final Token operator = expr.operator;
+		if (isNumber(expr)) {
+			final NumberNode number = number(expr);
+			return environment -> Numbers.box(number.evaluate(environment));
+		}
+		final ExprNode left = compile(expr.left);
+		final ExprNode right = compile(expr.right);
+		if (hasNumberOperands(expr)) {
+			final NumberNode leftNumber = operand(expr.left, left, operator);
+			final NumberNode rightNumber = operand(expr.right, right, operator);
+			switch (operator.tokenType) {
+			case GREATER:
+				return environment -> leftNumber.evaluate(environment) > rightNumber.evaluate(environment);
+			case GREATER_EQUAL:
+				return environment -> leftNumber.evaluate(environment) >= rightNumber.evaluate(environment);
+			case LESS:
+				return environment -> leftNumber.evaluate(environment) < rightNumber.evaluate(environment);
+			case LESS_EQUAL:
+				return environment -> leftNumber.evaluate(environment) <= rightNumber.evaluate(environment);
+			}
+		}
+		switch (operator.tokenType) {
+		case PLUS:
+			return environment -> CompiledRuntime.add(left.evaluate(environment), right.evaluate(environment), operator);
+		case MINUS:
+			return environment -> CompiledRuntime.subtract(left.evaluate(environment), right.evaluate(environment), operator);
+		case STAR:
+			return environment -> CompiledRuntime.multiply(left.evaluate(environment), right.evaluate(environment), operator);
+		case SLASH:
+			return environment -> CompiledRuntime.divide(left.evaluate(environment), right.evaluate(environment), operator);
+		case GREATER:
+			return environment -> CompiledRuntime.greater(left.evaluate(environment), right.evaluate(environment), operator);
+		case GREATER_EQUAL:
+			return environment -> CompiledRuntime.greaterEqual(left.evaluate(environment), right.evaluate(environment), operator);
+		case LESS:
+			return environment -> CompiledRuntime.less(left.evaluate(environment), right.evaluate(environment), operator);
+		case LESS_EQUAL:
+			return environment -> CompiledRuntime.lessEqual(left.evaluate(environment), right.evaluate(environment), operator);
+		case EQUAL_EQUAL:
+			return environment -> CompiledRuntime.equal(left.evaluate(environment), right.evaluate(environment));
+		case BANG_EQUAL:
+			return environment -> CompiledRuntime.notEqual(left.evaluate(environment), right.evaluate(environment));
+		}
+		return environment -> {
+			left.evaluate(environment);
+			right.evaluate(environment);
+			return null;
+		};
+	}
+
+	/**
+	 * Whether expr can only evaluate to a number, if it does not fail. Such an expression is compiled to a
+	 * NumberNode and only its final value is boxed.
+	 */
+	private static boolean isNumber(Expr expr) {
+		if (expr instanceof Expr.Literal) {
+			return ((Expr.Literal) expr).value instanceof Double;
+		}
+		if (expr instanceof Expr.Grouping) {
+			return isNumber(((Expr.Grouping) expr).expression);
+		}
+		if (expr instanceof Expr.Unary) {
+			final Expr.Unary unary = (Expr.Unary) expr;
+			return unary.operator.tokenType == TokenType.MINUS && isNumber(unary.right);
+		}
+		if (expr instanceof Expr.Binary) {
+			final Expr.Binary binary = (Expr.Binary) expr;
+			switch (binary.operator.tokenType) {
+			case PLUS:
+				return isNumber(binary.left) && isNumber(binary.right);
+			case MINUS:
+			case STAR:
+			case SLASH:
+				return hasNumberOperands(binary);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether the operands of a numeric operator can be evaluated as doubles. An operand not known to be a number
+	 * is checked as soon as it is evaluated, which only matches the Interpreter, checking once both are evaluated,
+	 * when nothing the right operand does can be observed.
+	 */
+	private static boolean hasNumberOperands(Expr.Binary expr) {
+		return isNumber(expr.left) || cannotFail(expr.right);
+	}
+
+	private static boolean cannotFail(Expr expr) {
+		if (expr instanceof Expr.Literal) {
+			return true;
+		}
+		if (expr instanceof Expr.Grouping) {
+			return cannotFail(((Expr.Grouping) expr).expression);
+		}
+		if (expr instanceof Expr.Variable) {
+			return ((Expr.Variable) expr).depth >= 0;
+		}
+		if (expr instanceof Expr.Unary) {
+			final Expr.Unary unary = (Expr.Unary) expr;
+			return unary.operator.tokenType == TokenType.MINUS && unary.right instanceof Expr.Literal &&
+					((Expr.Literal) unary.right).value instanceof Double;
+		}
+		return false;
+	}
+
+	/**
+	 * Compiles an expression isNumber accepts to evaluate to a primitive double.
+	 */
+	private NumberNode number(Expr expr) {
+		if (expr instanceof Expr.Literal) {
+			final double value = (double) ((Expr.Literal) expr).value;
+			return environment -> value;
+		}
+		if (expr instanceof Expr.Grouping) {
+			return number(((Expr.Grouping) expr).expression);
+		}
+		if (expr instanceof Expr.Unary) {
+			final NumberNode right = number(((Expr.Unary) expr).right);
+			return environment -> -right.evaluate(environment);
+		}
+		final Expr.Binary binary = (Expr.Binary) expr;
+		final Token operator = binary.operator;
+		final NumberNode left = operand(binary.left, operator);
+		final NumberNode right = operand(binary.right, operator);
+		switch (operator.tokenType) {
+		case PLUS:
+			return environment -> left.evaluate(environment) + right.evaluate(environment);
+		case MINUS:
+			return environment -> left.evaluate(environment) - right.evaluate(environment);
+		case STAR:
+			return environment -> left.evaluate(environment) * right.evaluate(environment);
+		}
+		return environment -> {
+			final double dividend = left.evaluate(environment);
+			final double divisor = right.evaluate(environment);
+			if (divisor == 0.0) {
+				throw new RuntimeError(operator, "Divisor can not be zero.");
+			}
+			return dividend / divisor;
+		};
+	}
+
+	private NumberNode operand(Expr expr, Token operator) {
+		if (isNumber(expr)) {
+			return number(expr);
+		}
+		return operand(expr, compile(expr), operator);
+	}
+
+	private NumberNode operand(Expr expr, ExprNode node, Token operator) {
+		if (isNumber(expr)) {
+			return number(expr);
+		}
+		return environment -> {
+			final Object value = node.evaluate(environment);
+			if (value instanceof Double) {
+				return (double) value;
+			}
+			throw new RuntimeError(operator, "Operands must be a number.");
+		};
+	}
+
+	@Override
+	public ExprNode visitCallExpr(Expr.Call expr) {
+		final Token paren = expr.paren;
+		final ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+		for (int i = 0; i < arguments.length; i++) {
+			arguments[i] = compile(expr.arguments.get(i));
+		}
+		if (expr.callee instanceof Expr.Get) {
+			return invoke((Expr.Get) expr.callee, paren, arguments);
+		}
+		if (expr.callee instanceof Expr.Super) {
+			return invokeSuper((Expr.Super) expr.callee, paren, arguments);
+		}
+		final ExprNode callee = compile(expr.callee);
+		switch (arguments.length) {
+		case 0:
+			return environment -> CompiledRuntime.call(interpreter, callee.evaluate(environment), paren);
+		case 1:
+			return environment -> CompiledRuntime.call(interpreter, callee.evaluate(environment), paren,
+					arguments[0].evaluate(environment));
+		case 2:
+			return environment -> CompiledRuntime.call(interpreter, callee.evaluate(environment), paren,
+					arguments[0].evaluate(environment), arguments[1].evaluate(environment));
+		}
+		return environment -> {
+			final Object function = callee.evaluate(environment);
+			return CompiledRuntime.call(interpreter, function, paren, evaluate(arguments, environment));
+		};
+	}
+
+	/**
+	 * Calls a method straight on the receiver. The method is only bound when it is used as a value.
+	 */
+	private ExprNode invoke(Expr.Get get, Token paren, ExprNode[] arguments) {
+		final ExprNode object = compile(get.object);
+		final Token name = get.name;
+		final PropertyCache cache = get.cache;
+		return environment -> {
+			final LoxInstance instance = CompiledRuntime.receiver(object.evaluate(environment), name);
+			final LoxFunction method = cache.method(instance, name);
+			if (Objects.isNull(method)) {
+				final Object callee = cache.get(instance, name);
+				return CompiledRuntime.call(interpreter, callee, paren, evaluate(arguments, environment));
+			}
+			return CompiledRuntime.invoke(interpreter, method, instance, paren, evaluate(arguments, environment));
+		};
+	}
+
+	private ExprNode invokeSuper(Expr.Super callee, Token paren, ExprNode[] arguments) {
+		final int depth = callee.depth;
+		final int slot = callee.slot;
+		final int receiverDepth = callee.receiverDepth;
+		final int receiverSlot = callee.receiverSlot;
+		return environment -> {
+			final LoxClass superclass = (LoxClass) environment.getAt(depth, slot);
+			final LoxInstance object = (LoxInstance) environment.getAt(receiverDepth, receiverSlot);
+			final LoxFunction method = CompiledRuntime.superMethod(callee, superclass);
+			return CompiledRuntime.invoke(interpreter, method, object, paren, evaluate(arguments, environment));
+		};
+	}
+
+	/**
+	 * A call the function returns the result of. A call to a Lox function is left for the caller to make.
+	 */
+	private StmtNode tailCall(Expr.Call expr) {
+		final Token paren = expr.paren;
+		final ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+		for (int i = 0; i < arguments.length; i++) {
+			arguments[i] = compile(expr.arguments.get(i));
+		}
+		if (expr.callee instanceof Expr.Get) {
+			final Expr.Get get = (Expr.Get) expr.callee;
+			final ExprNode object = compile(get.object);
+			final Token name = get.name;
+			final PropertyCache cache = get.cache;
+			return environment -> {
+				final LoxInstance instance = CompiledRuntime.receiver(object.evaluate(environment), name);
+				final LoxFunction method = cache.method(instance, name);
+				if (Objects.isNull(method)) {
+					final Object callee = cache.get(instance, name);
+					return CompiledRuntime.tailCall(interpreter, callee, paren, evaluate(arguments, environment));
+				}
+				return CompiledRuntime.tailInvoke(method, instance, paren, evaluate(arguments, environment));
+			};
+		}
+		if (expr.callee instanceof Expr.Super) {
+			final Expr.Super callee = (Expr.Super) expr.callee;
+			final int depth = callee.depth;
+			final int slot = callee.slot;
+			final int receiverDepth = callee.receiverDepth;
+			final int receiverSlot = callee.receiverSlot;
+			return environment -> {
+				final LoxClass superclass = (LoxClass) environment.getAt(depth, slot);
+				final LoxInstance object = (LoxInstance) environment.getAt(receiverDepth, receiverSlot);
+				final LoxFunction method = CompiledRuntime.superMethod(callee, superclass);
+				return CompiledRuntime.tailInvoke(method, object, paren, evaluate(arguments, environment));
+			};
+		}
+		final ExprNode callee = compile(expr.callee);
+		return environment -> {
+			final Object function = callee.evaluate(environment);
+			return CompiledRuntime.tailCall(interpreter, function, paren, evaluate(arguments, environment));
+		};
+	}
+
+	private static Object[] evaluate(ExprNode[] arguments, Environment environment) {
+		if (arguments.length == 0) {
+			return LoxCallable.NO_ARGUMENTS;
+		}
+		final Object[] values = new Object[arguments.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = arguments[i].evaluate(environment);
+		}
+		return values;
+	}
+
+	@Override
+	public ExprNode visitGetExpr(Expr.Get expr) {
+		final ExprNode object = compile(expr.object);
+		final Token name = expr.name;
+		final PropertyCache cache = expr.cache;
+		return environment -> CompiledRuntime.get(object.evaluate(environment), name, cache);
+	}
+
+	@Override
+	public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+		return compile(expr.expression);
+	}
+
+	@Override
+	public ExprNode visitLiteralExpr(Expr.Literal expr) {
+		final Object value = expr.value;
+		return environment -> value;
+	}
+
+	@Override
+	public ExprNode visitLogicalExpr(Expr.Logical expr) {
+		final ExprNode left = compile(expr.left);
+		final ExprNode right = compile(expr.right);
+		if (expr.operator.tokenType == TokenType.OR) {
+			return environment -> {
+				final Object value = left.evaluate(environment);
+				return CompiledRuntime.isTruthy(value) ? value : right.evaluate(environment);
+			};
+		}
+		return environment -> {
+			final Object value = left.evaluate(environment);
+			return CompiledRuntime.isTruthy(value) ? right.evaluate(environment) : value;
+		};
+	}
+
+	@Override
+	public ExprNode visitSetExpr(Expr.Set expr) {
+		final ExprNode object = compile(expr.object);
+		final ExprNode value = compile(expr.value);
+		final Token name = expr.name;
+		final PropertyCache cache = expr.cache;
+		return environment -> CompiledRuntime.set(
+				CompiledRuntime.checkInstance(object.evaluate(environment), name), name, value.evaluate(environment), cache);
+	}
+
+	@Override
+	public ExprNode visitSuperExpr(Expr.Super expr) {
+		final int depth = expr.depth;
+		final int slot = expr.slot;
+		final int receiverDepth = expr.receiverDepth;
+		final int receiverSlot = expr.receiverSlot;
+		return environment -> {
+			final LoxClass superclass = (LoxClass) environment.getAt(depth, slot);
+			final LoxInstance object = (LoxInstance) environment.getAt(receiverDepth, receiverSlot);
+			return CompiledRuntime.superMethod(expr, superclass).bind(object);
+		};
+	}
+
+	@Override
+	public ExprNode visitThisExpr(Expr.This expr) {
+		return variable(expr.keyword, expr.depth, expr.slot);
+	}
+
+	@Override
+	public ExprNode visitUnaryExpr(Expr.Unary expr) {
+		if (isNumber(expr)) {
+			final NumberNode number = number(expr);
+			return environment -> Numbers.box(number.evaluate(environment));
+		}
+		final ExprNode right = compile(expr.right);
+		final Token operator = expr.operator;
+		switch (operator.tokenType) {
+		case MINUS:
+			return environment -> CompiledRuntime.negate(right.evaluate(environment), operator);
+		case BANG:
+			return environment -> CompiledRuntime.not(right.evaluate(environment));
+		}
+		return environment -> {
+			right.evaluate(environment);
+			return null;
+		};
+	}
+
+	@Override
+	public ExprNode visitVariableExpr(Expr.Variable expr) {
+		return variable(expr.name, expr.depth, expr.slot);
+	}
+
+	@Override
+	public StmtNode visitBlockStmt(Stmt.Block stmt) {
+		final StmtNode body = sequence(stmt.statements);
+		final int slotCount = stmt.slotCount;
+		final int captureCount = stmt.captureCount;
+		if (stmt.newFrame && captureCount > 0) {
+			return environment -> body.execute(new Environment(environment.enclosing, slotCount).capturing(captureCount));
+		}
+		if (stmt.newFrame) {
+			return environment -> body.execute(new Environment(environment.enclosing, slotCount));
+		}
+		if (captureCount > 0) {
+			return environment -> body.execute(environment.capturing(captureCount));
+		}
+		return body;
+	}
+
+	@Override
+	public StmtNode visitClassStmt(Stmt.Class stmt) {
+		final Token name = stmt.name;
+		final int slot = stmt.slot;
+		final boolean captured = stmt.captured;
+		final ExprNode superclassNode = Objects.isNull(stmt.superclass) ? null : compile(stmt.superclass);
+		final List<Stmt.Function> methods = stmt.methods;
+		for (Stmt.Function method : methods) {
+			method.node = sequence(method.body);
+		}
+		return environment -> {
+			Object superclass = null;
+			if (Objects.nonNull(superclassNode)) {
+				superclass = superclassNode.evaluate(environment);
+				if (!(superclass instanceof LoxClass)) {
+					throw new RuntimeError(stmt.superclass.name, "Superclass must be of type class.");
+				}
+			}
+			if (slot < 0) {
+				globals.define(name.lexme, null);
+			}
+			Environment closure = environment.enclosing;
+			if (Objects.nonNull(superclass)) {
+				closure = new Environment(closure, 1);
+				closure.define(0, superclass);
+			}
+			final Map<String, LoxFunction> functions = new HashMap<>();
+			for (Stmt.Function method : methods) {
+				functions.put(method.name.lexme,
+						new LoxFunction(method, closure, method.name.lexme.equals("init")));
+			}
+			final LoxClass klass = new LoxClass(name.lexme, (LoxClass) superclass, functions);
+			if (Objects.nonNull(superclass)) {
+				CompiledRuntime.bindSuperExpressions(stmt, (LoxClass) superclass);
+			}
+			if (slot < 0) {
+				globals.define(name.lexme, klass);
+			}
+			else if (captured) {
+				environment.enclosing.define(slot, klass);
+			}
+			else {
+				environment.define(slot, klass);
+			}
+			return Interpreter.NORMAL;
+		};
+	}
+
+	@Override
+	public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+		final ExprNode expression = compile(stmt.expression);
+		return environment -> {
+			expression.evaluate(environment);
+			return Interpreter.NORMAL;
+		};
+	}
+
+	@Override
+	public StmtNode visitFunctionStmt(Stmt.Function stmt) {
+		stmt.node = sequence(stmt.body);
+		final Token name = stmt.name;
+		final int slot = stmt.slot;
+		return declare(name, slot, stmt.captured, environment -> new LoxFunction(stmt, environment.enclosing, false));
+	}
+
+	@Override
+	public StmtNode visitIfStmt(Stmt.If stmt) {
+		final ExprNode condition = compile(stmt.condition);
+		final StmtNode thenBranch = compile(stmt.thenBranch);
+		if (Objects.isNull(stmt.elseBranch)) {
+			return environment -> {
+				if (CompiledRuntime.isTruthy(condition.evaluate(environment))) {
+					return thenBranch.execute(environment);
+				}
+				return Interpreter.NORMAL;
+			};
+		}
+		final StmtNode elseBranch = compile(stmt.elseBranch);
+		return environment -> {
+			if (CompiledRuntime.isTruthy(condition.evaluate(environment))) {
+				return thenBranch.execute(environment);
+			}
+			return elseBranch.execute(environment);
+		};
+	}
+
+	@Override
+	public StmtNode visitPrintStmt(Stmt.Print stmt) {
+		final ExprNode expression = compile(stmt.expression);
+		return environment -> {
+			CompiledRuntime.print(expression.evaluate(environment));
+			return Interpreter.NORMAL;
+		};
+	}
+
+	@Override
+	public StmtNode visitReturnStmt(Stmt.Return stmt) {
+		if (Objects.isNull(stmt.value)) {
+			return environment -> null;
+		}
+		if (stmt.tailCall) {
+			return tailCall((Expr.Call) stmt.value);
+		}
+		final ExprNode value = compile(stmt.value);
+		return value::evaluate;
+	}
+
+	@Override
+	public StmtNode visitVarStmt(Stmt.Var stmt) {
+		final ExprNode initializer = Objects.isNull(stmt.initializer) ? environment -> null : compile(stmt.initializer);
+		return declare(stmt.name, stmt.slot, stmt.captured, initializer);
+	}
+
+	@Override
+	public StmtNode visitWhileStmt(Stmt.While stmt) {
+		final ExprNode condition = compile(stmt.condition);
+		final StmtNode body = compile(stmt.body);
+		final StmtNode loop = environment -> {
+			while (CompiledRuntime.isTruthy(condition.evaluate(environment))) {
+				final Object completion = body.execute(environment);
+				if (completion != Interpreter.NORMAL) {
+					return completion;
+				}
+			}
+			return Interpreter.NORMAL;
+		};
+		return Objects.isNull(stmt.counted) ? loop : countedLoop(stmt.counted, loop);
+	}
+
+	/**
+	 * A counted loop with its counter in a double, as the Interpreter runs it. It falls back to the loop as written when the counter does not start as a number.
+	 */
+	private StmtNode countedLoop(CountedLoop counted, StmtNode loop) {
+		final int slot = counted.slot;
+		final double step = counted.step;
+		final ExprNode bound = compile(counted.bound);
+		final StmtNode body = compile(counted.body);
+		return environment -> {
+			final Object start = environment.getAt(0, slot);
+			if (!(start instanceof Double)) {
+				return loop.execute(environment);
+			}
+			double counter = (double) start;
+			while (counted.test(counter, bound.evaluate(environment))) {
+				final Object completion = body.execute(environment);
+				if (completion != Interpreter.NORMAL) {
+					return completion;
+				}
+				counter += step;
+				environment.define(slot, Numbers.box(counter));
+			}
+			return Interpreter.NORMAL;
+		};
+	}
+}
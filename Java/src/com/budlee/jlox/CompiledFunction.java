@@ -0,0 +1,18 @@
+package com.budlee.jlox;
+
+/**
+ * The JVM compiled body of a Stmt.Function. LoxFunction hands calls to it instead of interpreting the declaration.
+ */
+final class CompiledFunction {
+	private final CompiledScript script;
+	private final int index;
+
+	CompiledFunction(CompiledScript script, int index) {
+		this.script = script;
+		this.index = index;
+	}
+
+	Object call(Interpreter interpreter, Object[] arguments) {
+		return script.call(index, interpreter, arguments);
+	}
+}
@@ -0,0 +1,250 @@
+package com.budlee.jlox;
+
+import java.util.Objects;
+
+/**
+ * The operations compiled code calls. They behave exactly as the matching visit methods of the Interpreter,
+ * small enough for HotSpot to inline them into the generated methods.
+ */
+final class CompiledRuntime {
+
+	private CompiledRuntime() {
+	}
+
+	static Object call(Interpreter interpreter, Object callee, Token paren) {
+		if (callee instanceof NativeFunction) {
+			checkArity((LoxCallable) callee, 0, paren);
+			return ((NativeFunction) callee).call0(interpreter);
+		}
+		return call(interpreter, callee, paren, LoxCallable.NO_ARGUMENTS);
+	}
+
+	static Object call(Interpreter interpreter, Object callee, Token paren, Object argument) {
+		if (callee instanceof NativeFunction) {
+			checkArity((LoxCallable) callee, 1, paren);
+			return ((NativeFunction) callee).call1(interpreter, argument);
+		}
+		return call(interpreter, callee, paren, new Object[]{argument});
+	}
+
+	static Object call(Interpreter interpreter, Object callee, Token paren, Object first, Object second) {
+		if (callee instanceof NativeFunction) {
+			checkArity((LoxCallable) callee, 2, paren);
+			return ((NativeFunction) callee).call2(interpreter, first, second);
+		}
+		return call(interpreter, callee, paren, new Object[]{first, second});
+	}
+
+	static Object call(Interpreter interpreter, Object callee, Token paren, Object... arguments) {
+		if (!(callee instanceof LoxCallable)) {
+			throw new RuntimeError(paren, "Can only call functions and classes.");
+		}
+		final LoxCallable function = (LoxCallable) callee;
+		checkArity(function, arguments.length, paren);
+		return function.call(interpreter, paren, arguments);
+	}
+
+	private static void checkArity(LoxCallable function, int count, Token paren) {
+		if (count != function.arity()) {
+			throw new RuntimeError(paren,
+					String.format("Expected %s arguments but got %s.", function.arity(), count));
+		}
+	}
+
+	static Object invoke(Interpreter interpreter, LoxFunction method, LoxInstance receiver, Token paren,
+			Object... arguments) {
+		checkArity(method, arguments.length, paren);
+		return method.invoke(interpreter, paren, receiver, arguments);
+	}
+
+	/**
+	 * A call a function returns the result of. A Lox function is not called but handed back to the function
+	 * returning, which calls it in its own place so tail recursion runs in constant stack.
+	 */
+	static Object tailCall(Interpreter interpreter, Object callee, Token paren, Object[] arguments) {
+		if (callee instanceof LoxFunction) {
+			final LoxFunction function = (LoxFunction) callee;
+			checkArity(function, arguments.length, paren);
+			return function.tailCall(arguments);
+		}
+		return call(interpreter, callee, paren, arguments);
+	}
+
+	static Object tailInvoke(LoxFunction method, LoxInstance receiver, Token paren, Object[] arguments) {
+		checkArity(method, arguments.length, paren);
+		return new TailCall(method, receiver, arguments);
+	}
+
+	static LoxInstance receiver(Object object, Token name) {
+		if (object instanceof LoxInstance) {
+			return (LoxInstance) object;
+		}
+		throw new RuntimeError(name, "Only instances have properties.");
+	}
+
+	static Object get(Object object, Token name, PropertyCache cache) {
+		if (object instanceof LoxInstance) {
+			return cache.get((LoxInstance) object, name);
+		}
+		throw new RuntimeError(name, "Only instances have properties.");
+	}
+
+	static Object set(Object object, Token name, Object value, PropertyCache cache) {
+		cache.set((LoxInstance) object, name, value);
+		return value;
+	}
+
+	/**
+	 * The method a super expression names, remembered for the superclass it last saw.
+	 */
+	static LoxFunction superMethod(Expr.Super expr, LoxClass superclass) {
+		if (superclass == expr.cachedSuperclass) {
+			return expr.cachedMethod;
+		}
+		final LoxFunction method = superclass.findMethod(expr.method.lexme);
+		if (Objects.isNull(method)) {
+			throw new RuntimeError(expr.method, String.format("Undefined property '%s'.", expr.method.lexme));
+		}
+		expr.cachedSuperclass = superclass;
+		expr.cachedMethod = method;
+		return method;
+	}
+
+	/**
+	 * Points the super expressions in a class's methods at the methods they name, once the class is defined.
+	 */
+	static void bindSuperExpressions(Stmt.Class stmt, LoxClass superclass) {
+		for (Expr.Super expr : stmt.superExpressions) {
+			final LoxFunction method = superclass.findMethod(expr.method.lexme);
+			if (Objects.nonNull(method)) {
+				expr.cachedSuperclass = superclass;
+				expr.cachedMethod = method;
+			}
+		}
+	}
+
+	static Object checkInstance(Object object, Token name) {
+		if (!(object instanceof LoxInstance)) {
+			throw new RuntimeError(name, "Only instances have fields.");
+		}
+		return object;
+	}
+
+	static Object assignGlobal(Interpreter interpreter, int index, Token name, Object value) {
+		interpreter.globals.assign(index, name, value);
+		return value;
+	}
+
+	static void print(Object value) {
+		System.out.println(stringify(value));
+	}
+
+	static Object add(Object left, Object right, Token operator) {
+		if (left instanceof Double && right instanceof Double) {
+			return Numbers.box((double) left + (double) right);
+		}
+		if (left instanceof String && right instanceof String) {
+			return (String) left + (String) right;
+		}
+		throw new RuntimeError(operator, "Operands must be two numbers or two strings");
+	}
+
+	static Object subtract(Object left, Object right, Token operator) {
+		checkNumberOperands(operator, left, right);
+		return Numbers.box((double) left - (double) right);
+	}
+
+	static Object multiply(Object left, Object right, Token operator) {
+		checkNumberOperands(operator, left, right);
+		return Numbers.box((double) left * (double) right);
+	}
+
+	static Object divide(Object left, Object right, Token operator) {
+		checkNumberOperands(operator, left, right);
+		if ((double) right == 0.0) {
+			throw new RuntimeError(operator, "Divisor can not be zero.");
+		}
+		return Numbers.box((double) left / (double) right);
+	}
+
+	static Object greater(Object left, Object right, Token operator) {
+		checkNumberOperands(operator, left, right);
+		return (double) left > (double) right;
+	}
+
+	static Object greaterEqual(Object left, Object right, Token operator) {
+		checkNumberOperands(operator, left, right);
+		return (double) left >= (double) right;
+	}
+
+	static Object less(Object left, Object right, Token operator) {
+		checkNumberOperands(operator, left, right);
+		return (double) left < (double) right;
+	}
+
+	static Object lessEqual(Object left, Object right, Token operator) {
+		checkNumberOperands(operator, left, right);
+		return (double) left <= (double) right;
+	}
+
+	static Object equal(Object left, Object right) {
+		return isEqual(left, right);
+	}
+
+	static Object notEqual(Object left, Object right) {
+		return !isEqual(left, right);
+	}
+
+	static Object negate(Object right, Token operator) {
+		if (!(right instanceof Double)) {
+			throw new RuntimeError(operator, "Operand must be a number.");
+		}
+		return Numbers.box(-(double) right);
+	}
+
+	static Object not(Object right) {
+		return !isTruthy(right);
+	}
+
+	static boolean isTruthy(Object object) {
+		if (Objects.isNull(object)) {
+			return false;
+		}
+		if (object instanceof Boolean) {
+			return (boolean) object;
+		}
+		return true;
+	}
+
+	private static void checkNumberOperands(Token operator, Object left, Object right) {
+		if (left instanceof Double &&
+				right instanceof Double) {
+			return;
+		}
+		throw new RuntimeError(operator, "Operands must be a number.");
+	}
+
+	static boolean isEqual(Object a, Object b) {
+		if (Objects.isNull(a) && Objects.isNull(b)) {
+			return true;
+		}
+		if (Objects.isNull(a)) {
+			return false;
+		}
+		return a.equals(b);
+	}
+
+	private static String stringify(Object object) {
+		if (Objects.isNull(object)) {
+			return "nil";
+		}
+		if (object instanceof Double) {
+			String text = object.toString();
+			if (text.endsWith(".0")) {
+				text = text.substring(0, text.length() - 2);
+			}
+			return text;
+		}
+		return object.toString();
+	}
+}
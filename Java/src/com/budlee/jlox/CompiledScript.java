@@ -0,0 +1,15 @@
+package com.budlee.jlox;
+
+import java.util.List;
+
+/**
+ * Base class of the classes the JvmCompiler generates. One is generated per compilation unit, holding the
+ * top level statements it could compile and a method for every function it compiled.
+ */
+abstract class CompiledScript {
+	CompiledFunction[] functions;
+
+	abstract void run(Interpreter interpreter, List<Stmt> statements);
+
+	abstract Object call(int function, Interpreter interpreter, Object[] arguments);
+}
@@ -0,0 +1,109 @@
+package com.budlee.jlox;
+
+/**
+ * A while loop that counts, as for loops desugar to: a local compared with a bound in the condition and only ever
+ * changed by adding a constant step at the end of each iteration.
+ *
+ * <pre>
+ *     while (i &lt; bound) { body; i = i + step; }
+ * </pre>
+ *
+ * The backends can keep the counter in a double. It is still stored in its slot after each step, so the body and
+ * any closures read it as before.
+ */
+final class CountedLoop {
+	final int slot;
+	final String name;
+	final Token operator;
+	final Expr bound;
+	final double step;
+	final Stmt body;
+
+	private CountedLoop(Expr.Variable counter, Token operator, Expr bound, double step, Stmt body) {
+		this.slot = counter.slot;
+		this.name = counter.name.lexme;
+		this.operator = operator;
+		this.bound = bound;
+		this.step = step;
+		this.body = body;
+	}
+
+	/**
+	 * Whether the loop has the shape of a counted loop. It only is one if the counter is also assigned nowhere
+	 * else, which the Resolver checks.
+	 *
+	 * @return the parts of the loop, or null if it does not have that shape
+	 */
+	static CountedLoop match(Stmt.While loop) {
+		if (!(loop.condition instanceof Expr.Binary) || !(loop.body instanceof Stmt.Block)) {
+			return null;
+		}
+		final Expr.Binary condition = (Expr.Binary) loop.condition;
+		if (!(condition.left instanceof Expr.Variable) || !isComparison(condition.operator.tokenType)) {
+			return null;
+		}
+		final Expr.Variable counter = (Expr.Variable) condition.left;
+		final Stmt.Block body = (Stmt.Block) loop.body;
+		if (counter.depth != 0 || body.newFrame || body.captureCount != 0 || body.statements.size() != 2 ||
+				!(body.statements.get(1) instanceof Stmt.Expression)) {
+			return null;
+		}
+		final Expr increment = ((Stmt.Expression) body.statements.get(1)).expression;
+		if (!(increment instanceof Expr.Assign) || !isCounter(((Expr.Assign) increment).depth,
+				((Expr.Assign) increment).slot, counter.slot)) {
+			return null;
+		}
+		final Expr value = ((Expr.Assign) increment).value;
+		if (!(value instanceof Expr.Binary)) {
+			return null;
+		}
+		final Expr.Binary step = (Expr.Binary) value;
+		if (!(step.left instanceof Expr.Variable) ||
+				!isCounter(((Expr.Variable) step.left).depth, ((Expr.Variable) step.left).slot, counter.slot) ||
+				!(step.right instanceof Expr.Literal) || !(((Expr.Literal) step.right).value instanceof Double)) {
+			return null;
+		}
+		final double amount = (double) ((Expr.Literal) step.right).value;
+		switch (step.operator.tokenType) {
+		case PLUS:
+			return new CountedLoop(counter, condition.operator, condition.right, amount,
+					body.statements.get(0));
+		case MINUS:
+			return new CountedLoop(counter, condition.operator, condition.right, -amount,
+					body.statements.get(0));
+		}
+		return null;
+	}
+
+	/**
+	 * Whether a variable read or written in the body is the counter, which the body declares nothing to hide.
+	 */
+	private static boolean isCounter(int depth, int slot, int counterSlot) {
+		return depth == 0 && slot == counterSlot;
+	}
+
+	private static boolean isComparison(TokenType operator) {
+		return operator == TokenType.LESS || operator == TokenType.LESS_EQUAL ||
+				operator == TokenType.GREATER || operator == TokenType.GREATER_EQUAL;
+	}
+
+	/**
+	 * The loop condition, with the same error as the comparison when the bound is not a number.
+	 */
+	boolean test(double counter, Object bound) {
+		if (!(bound instanceof Double)) {
+			throw new RuntimeError(operator, "Operands must be a number.");
+		}
+		final double limit = (double) bound;
+		switch (operator.tokenType) {
+		case LESS:
+			return counter < limit;
+		case LESS_EQUAL:
+			return counter <= limit;
+		case GREATER:
+			return counter > limit;
+		default:
+			return counter >= limit;
+		}
+	}
+}
@@ -1,37 +1,38 @@
 package com.budlee.jlox;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Objects;
-
+/**
+ * A function's frame, or a scope holding locals that closures capture. The Resolver gave every local a slot, so
+ * the values live in a fixed size array and a lookup is an ancestor walk followed by an array index.
+ *
+ * A frame holds all the locals of a call that no closure captures, whichever block declared them, and encloses
+ * only the scopes of captured locals. A closure keeps those, rather than the frame it was made in.
+ */
 public class Environment {
 	final Environment enclosing;
-	private final Map<String, Object> values = new HashMap<>();
+	private final Object[] values;
 
-	public Environment() {
-		this.enclosing = null;
+	public Environment(Environment enclosing, int slotCount) {
+		this.enclosing = enclosing;
+		this.values = new Object[slotCount];
 	}
 
-	public Environment(Environment enclosing) {
+	/**
+	 * A function's frame made straight from its arguments, when they are all the slots it needs.
+	 */
+	public Environment(Environment enclosing, Object[] values) {
 		this.enclosing = enclosing;
+		this.values = values;
 	}
 
-	Object get(Token name) {
-		if (values.containsKey(name.lexme)) {
-			final Object value = values.get(name.lexme);
-			if (Objects.isNull(value)) {
-				throw new RuntimeError(name, String.format("Variable '%s' has not been assigned value before use.", name.lexme));
-			}
-			return value;
-		}
-		if (enclosing != null) {
-			return enclosing.get(name);
-		}
-		throw new RuntimeError(name, String.format("Undefined variable '%s'.", name.lexme));
+	/**
+	 * The same frame, for a block declaring locals that closures capture, which are kept in a new scope of their own.
+	 */
+	Environment capturing(int slotCount) {
+		return new Environment(new Environment(enclosing, slotCount), values);
 	}
 
-	void define(String name, Object value) {
-		values.put(name, value);
+	void define(int slot, Object value) {
+		values[slot] = value;
 	}
 
 	private Environment ancestor(int distance) {
@@ -42,23 +43,11 @@ public class Environment {
 		return environment;
 	}
 
-	Object getAt(Integer distance, String name) {
-		return ancestor(distance).values.get(name);
-	}
-
-	void assign(Token name, Object value) {
-		if (values.containsKey(name.lexme)) {
-			values.put(name.lexme, value);
-			return;
-		}
-		if (enclosing != null) {
-			enclosing.assign(name, value);
-			return;
-		}
-		throw new RuntimeError(name, String.format("Undefined variable '%s'.", name.lexme));
+	Object getAt(int distance, int slot) {
+		return ancestor(distance).values[slot];
 	}
 
-	void assignAt(Integer distance, Token name, Object value) {
-		ancestor(distance).values.put(name.lexme, value);
+	void assignAt(int distance, int slot, Object value) {
+		ancestor(distance).values[slot] = value;
 	}
 }
@@ -31,6 +31,8 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+    int depth = -1;
+    int slot;
     }
     static class Binary extends Expr {
     Binary (Expr left, Token operator, Expr right) {
@@ -48,6 +50,7 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+    BinaryOperation operation = BinaryOperation.UNINITIALIZED;
     }
     static class Call extends Expr {
     Call (Expr callee, Token paren, List<Expr> arguments) {
@@ -65,6 +68,8 @@ abstract class Expr {
     final Expr callee;
     final Token paren;
     final List<Expr> arguments;
+    Stmt.Function cachedDeclaration;
+    boolean megamorphic;
     }
     static class Get extends Expr {
     Get (Expr object, Token name) {
@@ -80,6 +85,7 @@ abstract class Expr {
 
     final Expr object;
     final Token name;
+    PropertyCache cache = new PropertyCache();
     }
     static class Grouping extends Expr {
     Grouping (Expr expression) {
@@ -140,6 +146,7 @@ abstract class Expr {
     final Expr object;
     final Token name;
     final Expr value;
+    PropertyCache cache = new PropertyCache();
     }
     static class Super extends Expr {
     Super (Token keyword, Token method) {
@@ -155,6 +162,12 @@ abstract class Expr {
 
     final Token keyword;
     final Token method;
+    int depth = -1;
+    int slot;
+    int receiverDepth;
+    int receiverSlot;
+    LoxClass cachedSuperclass;
+    LoxFunction cachedMethod;
     }
     static class This extends Expr {
     This (Token keyword) {
@@ -168,6 +181,8 @@ abstract class Expr {
 
 
     final Token keyword;
+    int depth = -1;
+    int slot;
     }
     static class Variable extends Expr {
     Variable (Token name) {
@@ -181,6 +196,8 @@ abstract class Expr {
 
 
     final Token name;
+    int depth = -1;
+    int slot;
     }
     static class Unary extends Expr {
     Unary (Token operator, Expr right) {
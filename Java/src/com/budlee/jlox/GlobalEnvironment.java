@@ -0,0 +1,100 @@
+package com.budlee.jlox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The outermost scope. Globals can be referenced before they are declared, so the Resolver gives each name an
+ * index the first time it sees it and a global read or assignment is an array access. Names are only looked up
+ * when a global is declared, which may come after the code using it and in the REPL may declare it again.
+ */
+public class GlobalEnvironment extends Environment {
+	/**
+	 * What a global's slot holds until it is declared.
+	 */
+	private static final Object UNDEFINED = new Object();
+
+	private final Map<String, Integer> indices = new HashMap<>();
+	private Object[] values = new Object[0];
+	private String[] names = new String[0];
+
+	public GlobalEnvironment() {
+		super(null, 0);
+	}
+
+	/**
+	 * @return the index of the global with the name, given it if the name has not been seen before
+	 */
+	int indexOf(String name) {
+		final Integer index = indices.get(name);
+		if (Objects.nonNull(index)) {
+			return index;
+		}
+		final int added = indices.size();
+		indices.put(name, added);
+		if (added == values.length) {
+			final int length = values.length;
+			values = Arrays.copyOf(values, Math.max(16, length * 2));
+			Arrays.fill(values, length, values.length, UNDEFINED);
+			names = Arrays.copyOf(names, values.length);
+		}
+		names[added] = name;
+		return added;
+	}
+
+	Object get(int index, Token name) {
+		final Object value = values[index];
+		if (Objects.isNull(value)) {
+			throw new RuntimeError(name, String.format("Variable '%s' has not been assigned value before use.", name.lexme));
+		}
+		if (value == UNDEFINED) {
+			throw new RuntimeError(name, String.format("Undefined variable '%s'.", name.lexme));
+		}
+		return value;
+	}
+
+	void define(String name, Object value) {
+		final int index = indexOf(name);
+		values[index] = value;
+	}
+
+	/**
+	 * The VM's read of a global, which has no Token to report an error at.
+	 *
+	 * @return the value of the global with the index, or null if it is undefined or has not been assigned a value
+	 */
+	Object valueAt(int index) {
+		final Object value = values[index];
+		return value == UNDEFINED ? null : value;
+	}
+
+	/**
+	 * @return why the global with the index has no value
+	 */
+	String unsetMessage(int index) {
+		if (values[index] == UNDEFINED) {
+			return String.format("Undefined variable '%s'.", names[index]);
+		}
+		return String.format("Variable '%s' has not been assigned value before use.", names[index]);
+	}
+
+	boolean isDefined(int index) {
+		return values[index] != UNDEFINED;
+	}
+
+	/**
+	 * Declares or assigns the global with the index, which the caller has checked is defined unless declaring it.
+	 */
+	void set(int index, Object value) {
+		values[index] = value;
+	}
+
+	void assign(int index, Token name, Object value) {
+		if (values[index] == UNDEFINED) {
+			throw new RuntimeError(name, String.format("Undefined variable '%s'.", name.lexme));
+		}
+		values[index] = value;
+	}
+}
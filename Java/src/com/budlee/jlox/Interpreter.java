@@ -4,29 +4,34 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.stream.Collectors;
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-	final Environment globals = new Environment();
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
+	final GlobalEnvironment globals = new GlobalEnvironment();
 	private Environment environment = globals;
-	private final Map<Expr, Integer> locals = new HashMap<>();
+	TieredCompiler tieredCompiler;
+	/**
+	 * How deeply Lox calls may nest before the program fails with a stack overflow. Lox runs the Interpreter on a
+	 * thread with room on its stack for that many calls, so the limit is reached before the thread stack runs out.
+	 */
+	int maxDepth = VM.DEFAULT_MAX_FRAMES;
+	private int depth = 0;
+	/**
+	 * The innermost call made, where a program that still runs out of Java stack is reported to have overflowed.
+	 */
+	private Token call;
+
+	/**
+	 * What executing a statement returns when it completes normally. A return statement returns its value instead,
+	 * which every enclosing statement hands straight back up to the function being called.
+	 */
+	static final Object NORMAL = new Object();
 
 	Interpreter() {
-		globals.define("clock", new LoxCallable() {
+		globals.define("clock", new NativeFunction(0) {
 			@Override
-			public int arity() {
-				return 0;
-			}
-
-			@Override
-			public Object call(Interpreter interpreter, List<Object> arguments) {
+			Object callArray(Interpreter interpreter, Object[] arguments) {
 				return (double) System.currentTimeMillis() / 1000.0;
 			}
-
-			@Override
-			public String toString() {
-				return "<native fn>";
-			}
 		});
 	}
 
@@ -39,53 +44,40 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 		catch (RuntimeError error) {
 			Lox.runtimeError(error);
 		}
+		catch (StackOverflowError error) {
+			Lox.runtimeError(stackOverflow());
+		}
+	}
+
+	void interpret(CompiledScript script, List<Stmt> statements) {
+		try {
+			script.run(this, statements);
+		}
+		catch (RuntimeError error) {
+			Lox.runtimeError(error);
+		}
+		catch (StackOverflowError error) {
+			Lox.runtimeError(stackOverflow());
+		}
+	}
+
+	void interpret(ClosureCompiler.StmtNode program) {
+		try {
+			program.execute(globals);
+		}
+		catch (RuntimeError error) {
+			Lox.runtimeError(error);
+		}
+		catch (StackOverflowError error) {
+			Lox.runtimeError(stackOverflow());
+		}
 	}
 
 	@Override
 	public Object visitBinaryExpr(Expr.Binary expr) {
 		final Object left = evaluate(expr.left);
 		final Object right = evaluate(expr.right);
-		switch (expr.operator.tokenType) {
-		case GREATER:
-			checkNumberOperands(expr.operator, left, right);
-			return (double) left > (double) right;
-		case GREATER_EQUAL:
-			checkNumberOperands(expr.operator, left, right);
-			return (double) left >= (double) right;
-		case LESS:
-			checkNumberOperands(expr.operator, left, right);
-			return (double) left < (double) right;
-		case LESS_EQUAL:
-			checkNumberOperands(expr.operator, left, right);
-			return (double) left <= (double) right;
-		case BANG_EQUAL:
-			return !isEqual(left, right);
-		case EQUAL_EQUAL:
-			return isEqual(left, right);
-		case MINUS:
-			checkNumberOperands(expr.operator, left, right);
-			return (double) left - (double) right;
-		case SLASH:
-			checkNumberOperands(expr.operator, left, right);
-			if ((double) right == 0.0) {
-				throw new RuntimeError(expr.operator, "Divisor can not be zero.");
-			}
-			return (double) left / (double) right;
-		case STAR:
-			checkNumberOperands(expr.operator, left, right);
-			return (double) left * (double) right;
-		case PLUS:
-			if (left instanceof Double &&
-					right instanceof Double) {
-				return (double) left + (double) right;
-			}
-			if (left instanceof String &&
-					right instanceof String) {
-				return (String) left + (String) right;
-			}
-			throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings");
-		}
-		return null;
+		return expr.operation.execute(expr, left, right);
 	}
 
 	@Override
@@ -104,80 +96,126 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
 		switch (expr.operator.tokenType) {
 		case MINUS:
-			checkNumberOperand(expr.operator, right);
-			return -(double) right;
+			return CompiledRuntime.negate(right, expr.operator);
 		case BANG:
-			return !isTruthy(right);
+			return CompiledRuntime.not(right);
 		}
 		return null;
 	}
 
 	@Override
-	public Void visitExpressionStmt(Stmt.Expression stmt) {
+	public Object visitExpressionStmt(Stmt.Expression stmt) {
 		evaluate(stmt.expression);
-		return null;
+		return NORMAL;
 	}
 
 	@Override
-	public Void visitPrintStmt(Stmt.Print stmt) {
+	public Object visitPrintStmt(Stmt.Print stmt) {
 		final Object value = evaluate(stmt.expression);
-		System.out.println(stringify(value));
-		return null;
+		CompiledRuntime.print(value);
+		return NORMAL;
 	}
 
 	@Override
-	public Void visitVarStmt(Stmt.Var stmt) {
+	public Object visitVarStmt(Stmt.Var stmt) {
 		Object value = null;
 		if (stmt.initializer != null) {
 			value = evaluate(stmt.initializer);
 		}
-		environment.define(stmt.name.lexme, value);
-		return null;
+		declare(stmt.slot, stmt.captured, stmt.name, value);
+		return NORMAL;
 	}
 
 	@Override
-	public Void visitWhileStmt(Stmt.While stmt) {
-		while (isTruthy(evaluate(stmt.condition))) {
-			execute(stmt.body);
+	public Object visitWhileStmt(Stmt.While stmt) {
+		if (Objects.nonNull(stmt.counted) && environment.getAt(0, stmt.counted.slot) instanceof Double) {
+			return executeCountedLoop(stmt, stmt.counted);
+		}
+		while (CompiledRuntime.isTruthy(evaluate(stmt.condition))) {
+			final Object completion = execute(stmt.body);
+			if (completion != NORMAL) {
+				return completion;
+			}
+			if (Objects.nonNull(tieredCompiler)) {
+				countIteration(stmt);
+			}
 		}
-		return null;
+		return NORMAL;
+	}
+
+	/**
+	 * Runs a counted loop with its counter in a double, storing it back for the body after each step.
+	 */
+	private Object executeCountedLoop(Stmt.While stmt, CountedLoop loop) {
+		double counter = (double) environment.getAt(0, loop.slot);
+		while (loop.test(counter, evaluate(loop.bound))) {
+			final Object completion = execute(loop.body);
+			if (completion != NORMAL) {
+				return completion;
+			}
+			counter += loop.step;
+			environment.define(loop.slot, Numbers.box(counter));
+			if (Objects.nonNull(tieredCompiler)) {
+				countIteration(stmt);
+			}
+		}
+		return NORMAL;
 	}
 
 	@Override
 	public Object visitVariableExpr(Expr.Variable expr) {
-		return lookUpVariable(expr.name, expr);
+		return lookUpVariable(expr.name, expr.depth, expr.slot);
 	}
 
-	private Object lookUpVariable(Token name, Expr expr) {
-		Integer distance = locals.get(expr);
-		if (Objects.nonNull(distance)) {
-			return environment.getAt(distance, name.lexme);
+	private Object lookUpVariable(Token name, int depth, int slot) {
+		if (depth >= 0) {
+			return environment.getAt(depth, slot);
+		}
+		return globals.get(slot, name);
+	}
+
+	/**
+	 * A captured local is declared in the scope the current frame encloses, which is the one its block made.
+	 */
+	private void declare(int slot, boolean captured, Token name, Object value) {
+		if (slot < 0) {
+			globals.define(name.lexme, value);
+		}
+		else if (captured) {
+			environment.enclosing.define(slot, value);
+		}
+		else {
+			environment.define(slot, value);
 		}
-		return globals.get(name);
 	}
 
 	@Override
 	public Object visitAssignExpr(Expr.Assign expr) {
 		Object value = evaluate(expr.value);
 
-		Integer distance = locals.get(expr);
-		if (Objects.nonNull(distance)) {
-			environment.assignAt(distance, expr.name, value);
+		if (expr.depth >= 0) {
+			environment.assignAt(expr.depth, expr.slot, value);
 		}
 		else {
-			globals.assign(expr.name, value);
+			globals.assign(expr.slot, expr.name, value);
 		}
 		return value;
 	}
 
 	@Override
-	public Void visitBlockStmt(Stmt.Block stmt) {
-		executeBlock(stmt.statements, new Environment(environment));
-		return null;
+	public Object visitBlockStmt(Stmt.Block stmt) {
+		Environment scope = environment;
+		if (stmt.newFrame) {
+			scope = new Environment(environment.enclosing, stmt.slotCount);
+		}
+		if (stmt.captureCount > 0) {
+			scope = scope.capturing(stmt.captureCount);
+		}
+		return executeBlock(stmt.statements, scope);
 	}
 
 	@Override
-	public Void visitClassStmt(Stmt.Class stmt) {
+	public Object visitClassStmt(Stmt.Class stmt) {
 		Object superclass = null;
 		if(Objects.nonNull(stmt.superclass)){
 			superclass = evaluate(stmt.superclass);
@@ -186,46 +224,52 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 						"Superclass must be of type class.");
 			}
 		}
-		environment.define(stmt.name.lexme, null);
+		declare(stmt.slot, stmt.captured, stmt.name, null);
+		Environment closure = environment.enclosing;
 		if(Objects.nonNull(stmt.superclass)){
-			environment = new Environment(environment);
-			environment.define("super", superclass);
+			closure = new Environment(closure, 1);
+			closure.define(0, superclass);
 		}
 		final Map<String, LoxFunction> methods = new HashMap<>();
 		for (Stmt.Function method : stmt.methods) {
-			final LoxFunction function = new LoxFunction(method, environment, method.name.lexme.equals("init"));
+			final LoxFunction function = new LoxFunction(method, closure, method.name.lexme.equals("init"));
 			methods.put(method.name.lexme, function);
 		}
 
 		LoxClass klass = new LoxClass(stmt.name.lexme,(LoxClass) superclass, methods);
 		if(Objects.nonNull(superclass)){
-			environment = environment.enclosing;
+			CompiledRuntime.bindSuperExpressions(stmt, (LoxClass) superclass);
 		}
-		environment.assign(stmt.name, klass);
-		return null;
+		if (stmt.slot < 0) {
+			globals.define(stmt.name.lexme, klass);
+		}
+		else {
+			declare(stmt.slot, stmt.captured, stmt.name, klass);
+		}
+		return NORMAL;
 	}
 
 	@Override
-	public Void visitIfStmt(Stmt.If stmt) {
-		if (isTruthy(evaluate(stmt.condition))) {
-			execute(stmt.thenBranch);
+	public Object visitIfStmt(Stmt.If stmt) {
+		if (CompiledRuntime.isTruthy(evaluate(stmt.condition))) {
+			return execute(stmt.thenBranch);
 		}
 		else if (Objects.nonNull(stmt.elseBranch)) {
-			execute(stmt.elseBranch);
+			return execute(stmt.elseBranch);
 		}
-		return null;
+		return NORMAL;
 	}
 
 	@Override
 	public Object visitLogicalExpr(Expr.Logical expr) {
 		Object left = evaluate(expr.left);
 		if (expr.operator.tokenType == TokenType.OR) {
-			if (isTruthy(left)) {
+			if (CompiledRuntime.isTruthy(left)) {
 				return left;
 			}
 		}
 		else {
-			if (!isTruthy(left)) {
+			if (!CompiledRuntime.isTruthy(left)) {
 				return left;
 			}
 		}
@@ -240,146 +284,227 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 					"Only instances have fields.");
 		}
 		final Object value = evaluate(expr.value);
-		((LoxInstance) object).set(expr.name, value);
+		expr.cache.set((LoxInstance) object, expr.name, value);
 		return value;
 	}
 
 	@Override
 	public Object visitSuperExpr(Expr.Super expr) {
-		final Integer distance = locals.get(expr);
-		LoxClass superclass = (LoxClass) environment.getAt(distance, "super");
-		LoxInstance object = (LoxInstance) environment.getAt(distance -1, "this");
-		final LoxFunction method = superclass.findMethod(expr.method.lexme);
-
-		if(Objects.isNull(method)){
-			throw new RuntimeError(expr.method,
-					String.format("Undefined property '%s'.", expr.method.lexme));
-		}
-
-		return method.bind(object);
+		LoxClass superclass = (LoxClass) environment.getAt(expr.depth, expr.slot);
+		LoxInstance object = (LoxInstance) environment.getAt(expr.receiverDepth, expr.receiverSlot);
+		return CompiledRuntime.superMethod(expr, superclass).bind(object);
 	}
 
 	@Override
 	public Object visitThisExpr(Expr.This expr) {
-		return lookUpVariable(expr.keyword, expr);
+		return lookUpVariable(expr.keyword, expr.depth, expr.slot);
 	}
 
 	@Override
 	public Object visitCallExpr(Expr.Call expr) {
-		final Object callee = evaluate(expr.callee);
-		final List<Object> arguments = expr.arguments.stream()
-				.map(this::evaluate)
-				.collect(Collectors.toList());
-		if (!(callee instanceof LoxCallable)) {
-			throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+		if (expr.callee instanceof Expr.Get) {
+			return invoke(expr, (Expr.Get) expr.callee);
+		}
+		if (expr.callee instanceof Expr.Super) {
+			return invokeSuper(expr, (Expr.Super) expr.callee);
 		}
+		return call(expr, evaluate(expr.callee));
+	}
 
-		LoxCallable function = (LoxCallable) callee;
-		if (arguments.size() != function.arity()) {
+	private Object call(Expr.Call expr, Object callee) {
+		final Object[] arguments = evaluateArguments(expr);
+		if (!(callee instanceof LoxFunction) || ((LoxFunction) callee).declaration() != expr.cachedDeclaration) {
+			checkCall(expr, callee, arguments.length);
+		}
+		return ((LoxCallable) callee).call(this, expr.paren, arguments);
+	}
+
+	/**
+	 * Calls a method straight on the receiver. The method is only bound when it is used as a value.
+	 */
+	private Object invoke(Expr.Call expr, Expr.Get get) {
+		final Object object = evaluate(get.object);
+		if (!(object instanceof LoxInstance)) {
+			throw new RuntimeError(get.name,
+					"Only instances have properties.");
+		}
+		final LoxInstance instance = (LoxInstance) object;
+		final LoxFunction method = get.cache.method(instance, get.name);
+		if (Objects.isNull(method)) {
+			return call(expr, get.cache.get(instance, get.name));
+		}
+		return invoke(expr, method, instance);
+	}
+
+	private Object invokeSuper(Expr.Call expr, Expr.Super callee) {
+		final LoxClass superclass = (LoxClass) environment.getAt(callee.depth, callee.slot);
+		final LoxInstance object = (LoxInstance) environment.getAt(callee.receiverDepth, callee.receiverSlot);
+		return invoke(expr, CompiledRuntime.superMethod(callee, superclass), object);
+	}
+
+	private Object invoke(Expr.Call expr, LoxFunction method, LoxInstance receiver) {
+		final Object[] arguments = evaluateArguments(expr);
+		if (arguments.length != method.arity()) {
 			throw new RuntimeError(expr.paren,
-					String.format("Expected %s arguments but got %s.", function.arity(), arguments.size()));
+					String.format("Expected %s arguments but got %s.", method.arity(), arguments.length));
 		}
+		return method.invoke(this, expr.paren, receiver, arguments);
+	}
 
-		return function.call(this, arguments);
+	private Object[] evaluateArguments(Expr.Call expr) {
+		final int count = expr.arguments.size();
+		if (count == 0) {
+			return LoxCallable.NO_ARGUMENTS;
+		}
+		final Object[] arguments = new Object[count];
+		for (int i = 0; i < count; i++) {
+			arguments[i] = evaluate(expr.arguments.get(i));
+		}
+		return arguments;
 	}
 
 	@Override
 	public Object visitGetExpr(Expr.Get expr) {
 		final Object object = evaluate(expr.object);
 		if(object instanceof LoxInstance){
-			return ((LoxInstance) object).get(expr.name);
+			return expr.cache.get((LoxInstance) object, expr.name);
 		}
 		throw new RuntimeError(expr.name,
 				"Only instances have properties.");
 	}
 
 	@Override
-	public Void visitFunctionStmt(Stmt.Function stmt) {
-		final LoxFunction loxFunction = new LoxFunction(stmt, environment, false);
-		environment.define(stmt.name.lexme, loxFunction);
-		return null;
+	public Object visitFunctionStmt(Stmt.Function stmt) {
+		final LoxFunction loxFunction = new LoxFunction(stmt, environment.enclosing, false);
+		declare(stmt.slot, stmt.captured, stmt.name, loxFunction);
+		return NORMAL;
 	}
 
 	@Override
-	public Void visitReturnStmt(Stmt.Return stmt) {
+	public Object visitReturnStmt(Stmt.Return stmt) {
+		if (stmt.tailCall) {
+			return tailCall((Expr.Call) stmt.value);
+		}
 		Object value = null;
 		if (stmt.value != null) {
 			value = evaluate(stmt.value);
 		}
-		throw new Return(value);
+		return value;
 	}
 
-	private void checkNumberOperand(Token operator, Object operand) {
-		if (operand instanceof Double) {
-			return;
+	/**
+	 * Evaluates a call the way visitCallExpr does, but leaves a call to a Lox function for the caller to make.
+	 */
+	private Object tailCall(Expr.Call expr) {
+		if (expr.callee instanceof Expr.Get) {
+			final Expr.Get get = (Expr.Get) expr.callee;
+			final LoxInstance instance = CompiledRuntime.receiver(evaluate(get.object), get.name);
+			final LoxFunction method = get.cache.method(instance, get.name);
+			if (Objects.isNull(method)) {
+				return CompiledRuntime.tailCall(this, get.cache.get(instance, get.name), expr.paren,
+						evaluateArguments(expr));
+			}
+			return CompiledRuntime.tailInvoke(method, instance, expr.paren, evaluateArguments(expr));
 		}
-		throw new RuntimeError(operator, "Operand must be a number.");
-	}
-
-	private void checkNumberOperands(Token operator, Object left, Object right) {
-		if (left instanceof Double &&
-				right instanceof Double) {
-			return;
+		if (expr.callee instanceof Expr.Super) {
+			final Expr.Super callee = (Expr.Super) expr.callee;
+			final LoxClass superclass = (LoxClass) environment.getAt(callee.depth, callee.slot);
+			final LoxInstance object = (LoxInstance) environment.getAt(callee.receiverDepth, callee.receiverSlot);
+			return CompiledRuntime.tailInvoke(CompiledRuntime.superMethod(callee, superclass), object, expr.paren,
+					evaluateArguments(expr));
 		}
-		throw new RuntimeError(operator, "Operands must be a number.");
+		final Object callee = evaluate(expr.callee);
+		return CompiledRuntime.tailCall(this, callee, expr.paren, evaluateArguments(expr));
 	}
 
-	private boolean isTruthy(Object object) {
-		if (Objects.isNull(object)) {
-			return false;
+	/**
+	 * A call site remembers the declaration of the first function it checks, as every function made from it has
+	 * the same arity, and stops remembering for good once it sees another. Only the declaration is kept, so the
+	 * site does not hold on to the function and its closure.
+	 */
+	private void checkCall(Expr.Call expr, Object callee, int argumentCount) {
+		if (!(callee instanceof LoxCallable)) {
+			throw new RuntimeError(expr.paren, "Can only call functions and classes.");
 		}
-		if (object instanceof Boolean) {
-			return (boolean) object;
+
+		LoxCallable function = (LoxCallable) callee;
+		if (argumentCount != function.arity()) {
+			throw new RuntimeError(expr.paren,
+					String.format("Expected %s arguments but got %s.", function.arity(), argumentCount));
 		}
-		return true;
-	}
 
-	private boolean isEqual(Object a, Object b) {
-		if (Objects.isNull(a) && Objects.isNull(b)) {
-			return true;
+		if (!(callee instanceof LoxFunction) || expr.megamorphic) {
+			return;
 		}
-		if (Objects.isNull(a)) {
-			return false;
+		if (Objects.isNull(expr.cachedDeclaration)) {
+			expr.cachedDeclaration = ((LoxFunction) callee).declaration();
+		} else {
+			expr.cachedDeclaration = null;
+			expr.megamorphic = true;
 		}
-		return a.equals(b);
 	}
 
 	private Object evaluate(Expr expression) {
 		return expression.accept(this);
 	}
 
-	private void execute(Stmt stmt) {
-		stmt.accept(this);
+	private Object execute(Stmt stmt) {
+		return stmt.accept(this);
 	}
 
-	void resolve(Expr expr, int depth) {
-		locals.put(expr, depth);
+	void enterCall(Token name) {
+		if (depth == maxDepth) {
+			throw new RuntimeError(name, "Stack overflow.");
+		}
+		depth++;
+		call = name;
 	}
 
-	void executeBlock(List<Stmt> statements, Environment environment) {
+	/**
+	 * The error for a program that ran out of Java stack before it reached maxDepth calls, which expressions and
+	 * blocks nested deeply enough inside each call can do.
+	 */
+	private RuntimeError stackOverflow() {
+		return Objects.isNull(call) ? new RuntimeError(0, "Stack overflow.") : new RuntimeError(call, "Stack overflow.");
+	}
+
+	void exitCall() {
+		depth--;
+	}
+
+	/**
+	 * A function called often enough is compiled in the background, the next call after that runs the compiled code.
+	 */
+	void countCall(Stmt.Function declaration) {
+		if (Objects.nonNull(tieredCompiler) && ++declaration.calls == TieredCompiler.CALL_THRESHOLD) {
+			tieredCompiler.submit(declaration);
+		}
+	}
+
+	/**
+	 * A long running loop gets the function it is in compiled. There is no on stack replacement, so the loop
+	 * carries on in the interpreter and only later calls of the function benefit.
+	 */
+	private void countIteration(Stmt.While stmt) {
+		if (++stmt.iterations == TieredCompiler.LOOP_THRESHOLD && Objects.nonNull(stmt.enclosingFunction)) {
+			tieredCompiler.submit(stmt.enclosingFunction);
+		}
+	}
+
+	Object executeBlock(List<Stmt> statements, Environment environment) {
 		Environment previous = this.environment;
 		try {
 			this.environment = environment;
 			for (Stmt statement : statements) {
-				execute(statement);
+				final Object completion = execute(statement);
+				if (completion != NORMAL) {
+					return completion;
+				}
 			}
+			return NORMAL;
 		}
 		finally {
 			this.environment = previous;
 		}
 	}
-
-	private String stringify(Object object) {
-		if (Objects.isNull(object)) {
-			return "nil";
-		}
-		if (object instanceof Double) {
-			String text = object.toString();
-			if (text.endsWith(".0")) {
-				text = text.substring(0, text.length() - 2);
-			}
-			return text;
-		}
-		return object.toString();
-	}
 }
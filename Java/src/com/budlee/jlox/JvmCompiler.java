@@ -0,0 +1,816 @@
+package com.budlee.jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles resolved Lox code into JVM classes so HotSpot can JIT the Lox program itself rather than the Interpreter.
+ *
+ * Each compilation unit becomes one CompiledScript subclass, written as Java source and compiled in memory with
+ * the JDK's compiler. The class is defined next to this one so it can use the package private runtime directly.
+ * A function is compiled when it only uses its own locals and globals, a top level statement when it declares no
+ * functions or classes. Everything else is left to the Interpreter, which the generated code calls back into.
+ * A function javac still rejects is left to the Interpreter on its own, an error anywhere else leaves the whole
+ * unit to it.
+ */
+public class JvmCompiler {
+	private static final String PACKAGE = "com.budlee.jlox";
+	private static final int STATEMENTS_PER_PART = 500;
+	/**
+	 * A JVM method takes at most 255 slots of parameters. A function's call guard takes the most besides its
+	 * own: the receiver, the Interpreter, the callee and the paren.
+	 */
+	private static final int MAX_PARAMETERS = 255 - 4;
+	/**
+	 * Numbers the generated classes. The TieredCompiler's thread and the main one both compile, so it is atomic.
+	 */
+	private static final AtomicInteger unitCount = new AtomicInteger();
+
+	private final Path jar;
+
+	/**
+	 * @param jar where to also write the generated classes, or null to only load them
+	 */
+	JvmCompiler(Path jar) {
+		this.jar = jar;
+	}
+
+	/**
+	 * Compiles every eligible function in the program and as much of the top level as possible.
+	 *
+	 * @return the script to run in place of interpreting the statements, or null if nothing could be generated
+	 */
+	CompiledScript compile(List<Stmt> statements) {
+		final List<Stmt.Function> declarations = new ArrayList<>();
+		collectFunctions(statements, declarations);
+		return compile("LoxScript", declarations, statements);
+	}
+
+	/**
+	 * Compiles a single function on its own.
+	 *
+	 * @return the script holding it, or null if the function can not be compiled
+	 */
+	CompiledScript compile(Stmt.Function declaration) {
+		return compile("LoxFunction", List.of(declaration), List.of());
+	}
+
+	/**
+	 * javac can still reject a function the MethodWriter wrote, when it breaks a limit of the class file format.
+	 * Those functions are left to the Interpreter and the unit is compiled again without them. Only an error
+	 * outside the functions leaves the whole unit to the Interpreter.
+	 */
+	private CompiledScript compile(String name, List<Stmt.Function> declarations, List<Stmt> statements) {
+		List<Stmt.Function> compilable = declarations;
+		while (true) {
+			final Unit unit = new Unit(name + unitCount.incrementAndGet());
+			unit.addFunctions(compilable);
+			if (unit.functions.isEmpty() && statements.isEmpty()) {
+				return null;
+			}
+			unit.addScript(statements);
+			final List<Stmt.Function> rejected = new ArrayList<>();
+			final CompiledScript script = load(unit, rejected);
+			if (rejected.isEmpty()) {
+				return script;
+			}
+			compilable = new ArrayList<>(unit.functions);
+			compilable.removeAll(rejected);
+		}
+	}
+
+	private void collectFunctions(List<Stmt> statements, List<Stmt.Function> declarations) {
+		for (Stmt statement : statements) {
+			collectFunctions(statement, declarations);
+		}
+	}
+
+	private void collectFunctions(Stmt statement, List<Stmt.Function> declarations) {
+		if (statement instanceof Stmt.Function) {
+			final Stmt.Function function = (Stmt.Function) statement;
+			declarations.add(function);
+			collectFunctions(function.body, declarations);
+		}
+		else if (statement instanceof Stmt.Class) {
+			for (Stmt.Function method : ((Stmt.Class) statement).methods) {
+				collectFunctions(method, declarations);
+			}
+		}
+		else if (statement instanceof Stmt.Block) {
+			collectFunctions(((Stmt.Block) statement).statements, declarations);
+		}
+		else if (statement instanceof Stmt.If) {
+			collectFunctions(((Stmt.If) statement).thenBranch, declarations);
+			if (Objects.nonNull(((Stmt.If) statement).elseBranch)) {
+				collectFunctions(((Stmt.If) statement).elseBranch, declarations);
+			}
+		}
+		else if (statement instanceof Stmt.While) {
+			collectFunctions(((Stmt.While) statement).body, declarations);
+		}
+	}
+
+	/**
+	 * @param rejected where the functions javac reported errors in are added, when it reported none elsewhere
+	 * @return the loaded script, or null if it could not be compiled
+	 */
+	private CompiledScript load(Unit unit, List<Stmt.Function> rejected) {
+		final JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+		if (Objects.isNull(javac)) {
+			System.err.println("Compiling to JVM bytecode needs a JDK, running in the interpreter instead.");
+			return null;
+		}
+		final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+		final MemoryFileManager fileManager = new MemoryFileManager(javac.getStandardFileManager(diagnostics, null, null));
+		final List<String> options = List.of("-classpath", System.getProperty("java.class.path"), "-proc:none", "-g:none");
+		final SourceFile source = new SourceFile(unit.className, unit.source());
+		final boolean compiled = javac.getTask(null, fileManager, diagnostics, options, null, List.of(source)).call();
+		if (!compiled) {
+			final List<Diagnostic<? extends JavaFileObject>> errors = new ArrayList<>();
+			for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+				if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+					errors.add(diagnostic);
+				}
+			}
+			final String reason = errors.isEmpty() ? "unknown error" : errors.get(0).getMessage(null);
+			final Map<Stmt.Function, String> failed = new LinkedHashMap<>();
+			for (Diagnostic<? extends JavaFileObject> error : errors) {
+				final Stmt.Function function = unit.functionAt(error.getLineNumber());
+				if (Objects.isNull(function)) {
+					failed.clear();
+					break;
+				}
+				failed.putIfAbsent(function, error.getMessage(null));
+			}
+			if (!failed.isEmpty()) {
+				failed.forEach((function, message) -> System.err.println(String.format(
+						"Could not compile '%s' to JVM bytecode (%s), running it in the interpreter instead.",
+						function.name.lexme, message)));
+				rejected.addAll(failed.keySet());
+				return null;
+			}
+			System.err.println(String.format("Could not compile to JVM bytecode (%s), running in the interpreter instead.", reason));
+			return null;
+		}
+		try {
+			if (Objects.nonNull(jar)) {
+				writeJar(fileManager.classes);
+			}
+			final MethodHandles.Lookup lookup = MethodHandles.lookup();
+			Class<?> scriptClass = null;
+			for (Map.Entry<String, byte[]> entry : fileManager.classes.entrySet()) {
+				final Class<?> defined = lookup.defineClass(entry.getValue());
+				if (entry.getKey().equals(PACKAGE + "." + unit.className)) {
+					scriptClass = defined;
+				}
+			}
+			final CompiledScript script = (CompiledScript) scriptClass.getDeclaredConstructor().newInstance();
+			script.functions = new CompiledFunction[unit.functions.size()];
+			for (int i = 0; i < unit.functions.size(); i++) {
+				script.functions[i] = new CompiledFunction(script, i);
+			}
+			for (int i = 0; i < unit.functions.size(); i++) {
+				unit.functions.get(i).compiled = script.functions[i];
+			}
+			return script;
+		}
+		catch (ReflectiveOperationException | IOException e) {
+			System.err.println(String.format("Could not load JVM bytecode (%s), running in the interpreter instead.", e));
+			return null;
+		}
+	}
+
+	private void writeJar(Map<String, byte[]> classes) throws IOException {
+		try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+			for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+				out.putNextEntry(new JarEntry(entry.getKey().replace('.', '/') + ".class"));
+				out.write(entry.getValue());
+				out.closeEntry();
+			}
+		}
+	}
+
+	/**
+	 * Thrown while generating code for something the compiler leaves to the Interpreter.
+	 */
+	private static class NotCompilable extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		NotCompilable() {
+			super(null, null, false, false);
+		}
+	}
+
+	/**
+	 * The source of one generated class.
+	 */
+	private static class Unit {
+		final String className;
+		final List<Stmt.Function> functions = new ArrayList<>();
+		private final List<String> functionMethods = new ArrayList<>();
+		private final List<String> statementMethods = new ArrayList<>();
+		private final List<String> parts = new ArrayList<>();
+		private final Map<Token, String> tokens = new IdentityHashMap<>();
+		private final Map<Double, String> numbers = new HashMap<>();
+		private final StringBuilder constants = new StringBuilder();
+		private int propertyCaches;
+		private final Map<String, String> callGuards = new LinkedHashMap<>();
+		private final List<String> callGuardMethods = new ArrayList<>();
+		/**
+		 * The function each call guard method calls.
+		 */
+		private final List<Stmt.Function> callGuardFunctions = new ArrayList<>();
+		/**
+		 * Where in the source each function's method and then each call guard method starts, followed by the line
+		 * after the last of them.
+		 */
+		private int[] methodLines = new int[0];
+
+		Unit(String className) {
+			this.className = className;
+		}
+
+		/**
+		 * Functions that can not be compiled are left to the Interpreter. The rest are all known before any
+		 * body is written so calls between them, including recursive ones, can be made directly.
+		 */
+		void addFunctions(List<Stmt.Function> declarations) {
+			for (Stmt.Function declaration : declarations) {
+				try {
+					new MethodWriter(new Unit(className)).function(declaration, 0);
+					functions.add(declaration);
+				}
+				catch (NotCompilable e) {
+					// Left to the Interpreter.
+				}
+			}
+			for (int i = 0; i < functions.size(); i++) {
+				functionMethods.add(new MethodWriter(this).function(functions.get(i), i));
+			}
+		}
+
+		void addScript(List<Stmt> statements) {
+			for (int start = 0; start < statements.size(); start += STATEMENTS_PER_PART) {
+				final int end = Math.min(statements.size(), start + STATEMENTS_PER_PART);
+				final StringBuilder part = new StringBuilder();
+				part.append(String.format("\tprivate void part%s(Interpreter rt, List<Stmt> statements) {\n", parts.size()));
+				int interpretedFrom = -1;
+				for (int i = start; i < end; i++) {
+					String method;
+					try {
+						method = new MethodWriter(this).statement(statements.get(i), statementMethods.size());
+					}
+					catch (NotCompilable e) {
+						method = null;
+					}
+					if (Objects.isNull(method)) {
+						if (interpretedFrom < 0) {
+							interpretedFrom = i;
+						}
+						continue;
+					}
+					if (interpretedFrom >= 0) {
+						part.append(String.format("\t\trt.executeBlock(statements.subList(%s, %s), rt.globals);\n", interpretedFrom, i));
+						interpretedFrom = -1;
+					}
+					part.append(String.format("\t\ts%s(rt);\n", statementMethods.size()));
+					statementMethods.add(method);
+				}
+				if (interpretedFrom >= 0) {
+					part.append(String.format("\t\trt.executeBlock(statements.subList(%s, %s), rt.globals);\n", interpretedFrom, end));
+				}
+				part.append("\t}\n");
+				parts.add(part.toString());
+			}
+		}
+
+		String token(Token token) {
+			return tokens.computeIfAbsent(token, key -> {
+				final String name = "T" + tokens.size();
+				constants.append(String.format("\tprivate static final Token %s = new Token(TokenType.%s, %s, null, %s);\n",
+						name, key.tokenType, javaString(key.lexme), key.line));
+				return name;
+			});
+		}
+
+		String propertyCache() {
+			final String name = "C" + propertyCaches++;
+			constants.append(String.format("\tprivate static final PropertyCache %s = new PropertyCache();\n", name));
+			return name;
+		}
+
+		String number(Double value) {
+			return numbers.computeIfAbsent(value, key -> {
+				final String name = "K" + numbers.size();
+				constants.append(String.format("\tprivate static final Object %s = %s;\n", name, key));
+				return name;
+			});
+		}
+
+		/**
+		 * A call to a global that holds a function compiled into this unit goes straight to the generated method,
+		 * after checking the global still holds that function. It counts towards the call depth like any other.
+		 *
+		 * @return the guard method to call, or null to make a dynamic call
+		 */
+		String callGuard(String name, int arity) {
+			for (int i = 0; i < functions.size(); i++) {
+				final Stmt.Function function = functions.get(i);
+				if (function.slot < 0 && function.name.lexme.equals(name) && function.params.size() == arity) {
+					final int index = i;
+					return callGuards.computeIfAbsent(name + "/" + arity, key -> {
+						final StringBuilder parameters = new StringBuilder();
+						final StringBuilder arguments = new StringBuilder();
+						for (int p = 0; p < arity; p++) {
+							parameters.append(", Object a").append(p);
+							arguments.append(", a").append(p);
+						}
+						final String guardName = "call" + index;
+						final StringBuilder guard = new StringBuilder();
+						guard.append(String.format("\tprivate Object %s(Interpreter rt, Object callee, Token paren%s) {\n", guardName, parameters));
+						guard.append(String.format("\t\tif (callee instanceof LoxFunction && ((LoxFunction) callee).runs(functions[%s])) {\n", index));
+						guard.append("\t\t\trt.enterCall(paren);\n");
+						guard.append("\t\t\ttry {\n");
+						guard.append(String.format("\t\t\t\treturn f%s(rt%s);\n", index, arguments));
+						guard.append("\t\t\t}\n");
+						guard.append("\t\t\tfinally {\n");
+						guard.append("\t\t\t\trt.exitCall();\n");
+						guard.append("\t\t\t}\n");
+						guard.append("\t\t}\n");
+						guard.append(String.format("\t\treturn CompiledRuntime.call(rt, callee, paren%s);\n", arguments));
+						guard.append("\t}\n\n");
+						callGuardMethods.add(guard.toString());
+						callGuardFunctions.add(function);
+						return guardName;
+					});
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * @return the function whose method or call guard the line of the source is in, or null if it is in neither
+		 */
+		Stmt.Function functionAt(long line) {
+			for (int i = 0; i < functions.size() + callGuardFunctions.size(); i++) {
+				if (line >= methodLines[i] && line < methodLines[i + 1]) {
+					return i < functions.size() ? functions.get(i) : callGuardFunctions.get(i - functions.size());
+				}
+			}
+			return null;
+		}
+
+		private static int lineAt(StringBuilder source) {
+			int line = 1;
+			for (int i = 0; i < source.length(); i++) {
+				if (source.charAt(i) == '\n') {
+					line++;
+				}
+			}
+			return line;
+		}
+
+		String source() {
+			final StringBuilder source = new StringBuilder();
+			source.append("package ").append(PACKAGE).append(";\n\n");
+			source.append("import java.util.List;\n\n");
+			source.append(String.format("final class %s extends CompiledScript {\n", className));
+			source.append(constants).append('\n');
+			source.append("\t@Override\n\tvoid run(Interpreter rt, List<Stmt> statements) {\n");
+			for (int i = 0; i < parts.size(); i++) {
+				source.append(String.format("\t\tpart%s(rt, statements);\n", i));
+			}
+			source.append("\t}\n\n");
+			parts.forEach(part -> source.append(part).append('\n'));
+			statementMethods.forEach(method -> source.append(method).append('\n'));
+			source.append("\t@Override\n\tObject call(int function, Interpreter rt, Object[] arguments) {\n");
+			source.append("\t\tswitch (function) {\n");
+			for (int i = 0; i < functions.size(); i++) {
+				final StringBuilder arguments = new StringBuilder();
+				for (int p = 0; p < functions.get(i).params.size(); p++) {
+					arguments.append(", arguments[").append(p).append(']');
+				}
+				source.append(String.format("\t\tcase %s:\n\t\t\treturn f%s(rt%s);\n", i, i, arguments));
+			}
+			source.append("\t\tdefault:\n\t\t\tthrow new IllegalArgumentException();\n\t\t}\n\t}\n\n");
+			final List<String> methods = new ArrayList<>();
+			functionMethods.forEach(method -> methods.add(method + '\n'));
+			methods.addAll(callGuardMethods);
+			methodLines = new int[methods.size() + 1];
+			for (int i = 0; i < methods.size(); i++) {
+				methodLines[i] = lineAt(source);
+				source.append(methods.get(i));
+			}
+			methodLines[methods.size()] = lineAt(source);
+			source.append("}\n");
+			return source.toString();
+		}
+	}
+
+	/**
+	 * Writes one method, either a function body or a top level statement. Expressions become Java expressions,
+	 * statements return whether they can complete normally so no unreachable Java is written after a return.
+	 */
+	private static class MethodWriter implements Expr.Visitor<String>, Stmt.Visitor<Boolean> {
+		private final Unit unit;
+		private final StringBuilder out = new StringBuilder();
+		private final Deque<String[]> scopes = new ArrayDeque<>();
+		private int localCount = 0;
+		private int indent = 2;
+
+		MethodWriter(Unit unit) {
+			this.unit = unit;
+		}
+
+		String function(Stmt.Function declaration, int index) {
+			if (declaration.captureCount > 0 || declaration.params.size() > MAX_PARAMETERS) {
+				throw new NotCompilable();
+			}
+			final String[] scope = new String[declaration.slotCount];
+			final StringBuilder parameters = new StringBuilder();
+			// A method's first slot is its receiver, which compiled code never reads as it can not use this.
+			final int first = declaration.isMethod ? 1 : 0;
+			for (int i = 0; i < declaration.params.size(); i++) {
+				scope[first + i] = local();
+				parameters.append(", Object ").append(scope[first + i]);
+			}
+			scopes.push(scope);
+			final boolean completesNormally = statements(declaration.body);
+			if (completesNormally) {
+				line("return null;");
+			}
+			return String.format("\tprivate Object f%s(Interpreter rt%s) {\n\t\tObject t = null;\n%s\t}\n",
+					index, parameters, out);
+		}
+
+		/**
+		 * @return the method running the statement, or null if it has to be interpreted
+		 */
+		String statement(Stmt statement, int index) {
+			if (statement instanceof Stmt.Function || statement instanceof Stmt.Class) {
+				return null;
+			}
+			statement(statement);
+			return String.format("\tprivate void s%s(Interpreter rt) {\n\t\tObject t = null;\n%s\t}\n", index, out);
+		}
+
+		private boolean statements(List<Stmt> statements) {
+			for (Stmt statement : statements) {
+				if (!statement(statement)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private boolean statement(Stmt statement) {
+			return statement.accept(this);
+		}
+
+		private boolean nested(Stmt statement) {
+			line("{");
+			indent++;
+			final boolean completesNormally = statement(statement);
+			indent--;
+			line("}");
+			return completesNormally;
+		}
+
+		@Override
+		public Boolean visitBlockStmt(Stmt.Block stmt) {
+			if (stmt.captureCount > 0) {
+				throw new NotCompilable();
+			}
+			line("{");
+			indent++;
+			if (stmt.newFrame) {
+				scopes.push(new String[stmt.slotCount]);
+			}
+			final boolean completesNormally = statements(stmt.statements);
+			if (stmt.newFrame) {
+				scopes.pop();
+			}
+			indent--;
+			line("}");
+			return completesNormally;
+		}
+
+		@Override
+		public Boolean visitClassStmt(Stmt.Class stmt) {
+			throw new NotCompilable();
+		}
+
+		@Override
+		public Boolean visitExpressionStmt(Stmt.Expression stmt) {
+			line(String.format("t = %s;", expression(stmt.expression)));
+			return true;
+		}
+
+		@Override
+		public Boolean visitFunctionStmt(Stmt.Function stmt) {
+			throw new NotCompilable();
+		}
+
+		@Override
+		public Boolean visitIfStmt(Stmt.If stmt) {
+			line(String.format("if (CompiledRuntime.isTruthy(%s))", expression(stmt.condition)));
+			final boolean thenCompletes = nested(stmt.thenBranch);
+			if (Objects.isNull(stmt.elseBranch)) {
+				return true;
+			}
+			line("else");
+			final boolean elseCompletes = nested(stmt.elseBranch);
+			return thenCompletes || elseCompletes;
+		}
+
+		@Override
+		public Boolean visitPrintStmt(Stmt.Print stmt) {
+			line(String.format("CompiledRuntime.print(%s);", expression(stmt.expression)));
+			return true;
+		}
+
+		@Override
+		public Boolean visitReturnStmt(Stmt.Return stmt) {
+			// Compiled calls use the Java stack, so a function making tail calls is left to the Interpreter.
+			if (scopes.isEmpty() || stmt.tailCall) {
+				throw new NotCompilable();
+			}
+			line(String.format("return %s;", Objects.isNull(stmt.value) ? "null" : expression(stmt.value)));
+			return false;
+		}
+
+		@Override
+		public Boolean visitVarStmt(Stmt.Var stmt) {
+			final String value = Objects.isNull(stmt.initializer) ? "null" : expression(stmt.initializer);
+			if (stmt.slot < 0) {
+				line(String.format("rt.globals.define(%s, %s);", javaString(stmt.name.lexme), value));
+				return true;
+			}
+			if (stmt.captured) {
+				throw new NotCompilable();
+			}
+			final String local = local();
+			line(String.format("Object %s = %s;", local, value));
+			scopes.peek()[stmt.slot] = local;
+			return true;
+		}
+
+		@Override
+		public Boolean visitWhileStmt(Stmt.While stmt) {
+			line(String.format("while (CompiledRuntime.isTruthy(%s))", expression(stmt.condition)));
+			nested(stmt.body);
+			return true;
+		}
+
+		@Override
+		public String visitAssignExpr(Expr.Assign expr) {
+			final String value = expression(expr.value);
+			if (expr.depth < 0) {
+				return String.format("CompiledRuntime.assignGlobal(rt, %s, %s, %s)", expr.slot, unit.token(expr.name),
+						value);
+			}
+			return String.format("(%s = %s)", local(expr.depth, expr.slot), value);
+		}
+
+		@Override
+		public String visitBinaryExpr(Expr.Binary expr) {
+			final String left = expression(expr.left);
+			final String right = expression(expr.right);
+			final String operator = unit.token(expr.operator);
+			switch (expr.operator.tokenType) {
+			case GREATER:
+				return String.format("CompiledRuntime.greater(%s, %s, %s)", left, right, operator);
+			case GREATER_EQUAL:
+				return String.format("CompiledRuntime.greaterEqual(%s, %s, %s)", left, right, operator);
+			case LESS:
+				return String.format("CompiledRuntime.less(%s, %s, %s)", left, right, operator);
+			case LESS_EQUAL:
+				return String.format("CompiledRuntime.lessEqual(%s, %s, %s)", left, right, operator);
+			case BANG_EQUAL:
+				return String.format("CompiledRuntime.notEqual(%s, %s)", left, right);
+			case EQUAL_EQUAL:
+				return String.format("CompiledRuntime.equal(%s, %s)", left, right);
+			case MINUS:
+				return String.format("CompiledRuntime.subtract(%s, %s, %s)", left, right, operator);
+			case SLASH:
+				return String.format("CompiledRuntime.divide(%s, %s, %s)", left, right, operator);
+			case STAR:
+				return String.format("CompiledRuntime.multiply(%s, %s, %s)", left, right, operator);
+			case PLUS:
+				return String.format("CompiledRuntime.add(%s, %s, %s)", left, right, operator);
+			}
+			throw new NotCompilable();
+		}
+
+		@Override
+		public String visitCallExpr(Expr.Call expr) {
+			final String callee = expression(expr.callee);
+			final StringBuilder arguments = new StringBuilder();
+			for (Expr argument : expr.arguments) {
+				arguments.append(", ").append(expression(argument));
+			}
+			final String paren = unit.token(expr.paren);
+			if (expr.callee instanceof Expr.Variable && ((Expr.Variable) expr.callee).depth < 0) {
+				final String guard = unit.callGuard(((Expr.Variable) expr.callee).name.lexme, expr.arguments.size());
+				if (Objects.nonNull(guard)) {
+					return String.format("%s(rt, %s, %s%s)", guard, callee, paren, arguments);
+				}
+			}
+			return String.format("CompiledRuntime.call(rt, %s, %s%s)", callee, paren, arguments);
+		}
+
+		@Override
+		public String visitGetExpr(Expr.Get expr) {
+			return String.format("CompiledRuntime.get(%s, %s, %s)", expression(expr.object), unit.token(expr.name),
+					unit.propertyCache());
+		}
+
+		@Override
+		public String visitGroupingExpr(Expr.Grouping expr) {
+			return String.format("(%s)", expression(expr.expression));
+		}
+
+		@Override
+		public String visitLiteralExpr(Expr.Literal expr) {
+			if (Objects.isNull(expr.value)) {
+				return "null";
+			}
+			if (expr.value instanceof Boolean) {
+				return (boolean) expr.value ? "Boolean.TRUE" : "Boolean.FALSE";
+			}
+			if (expr.value instanceof Double) {
+				return unit.number((Double) expr.value);
+			}
+			return javaString((String) expr.value);
+		}
+
+		@Override
+		public String visitLogicalExpr(Expr.Logical expr) {
+			final String left = expression(expr.left);
+			final String right = expression(expr.right);
+			if (expr.operator.tokenType == TokenType.OR) {
+				return String.format("(CompiledRuntime.isTruthy(t = %s) ? t : %s)", left, right);
+			}
+			return String.format("(!CompiledRuntime.isTruthy(t = %s) ? t : %s)", left, right);
+		}
+
+		@Override
+		public String visitSetExpr(Expr.Set expr) {
+			final String name = unit.token(expr.name);
+			return String.format("CompiledRuntime.set(CompiledRuntime.checkInstance(%s, %s), %s, %s, %s)",
+					expression(expr.object), name, name, expression(expr.value), unit.propertyCache());
+		}
+
+		@Override
+		public String visitSuperExpr(Expr.Super expr) {
+			throw new NotCompilable();
+		}
+
+		@Override
+		public String visitThisExpr(Expr.This expr) {
+			throw new NotCompilable();
+		}
+
+		@Override
+		public String visitVariableExpr(Expr.Variable expr) {
+			if (expr.depth < 0) {
+				return String.format("rt.globals.get(%s, %s)", expr.slot, unit.token(expr.name));
+			}
+			return local(expr.depth, expr.slot);
+		}
+
+		@Override
+		public String visitUnaryExpr(Expr.Unary expr) {
+			final String right = expression(expr.right);
+			if (expr.operator.tokenType == TokenType.MINUS) {
+				return String.format("CompiledRuntime.negate(%s, %s)", right, unit.token(expr.operator));
+			}
+			return String.format("CompiledRuntime.not(%s)", right);
+		}
+
+		private String expression(Expr expr) {
+			return expr.accept(this);
+		}
+
+		private String local() {
+			return "l" + localCount++;
+		}
+
+		/**
+		 * Only the frame's locals become Java locals, a captured variable belongs to a closure.
+		 */
+		private String local(int depth, int slot) {
+			if (depth != 0 || scopes.isEmpty()) {
+				throw new NotCompilable();
+			}
+			final String[] scope = scopes.peek();
+			if (Objects.isNull(scope[slot])) {
+				throw new NotCompilable();
+			}
+			return scope[slot];
+		}
+
+		private void line(String code) {
+			out.append("\t".repeat(indent)).append(code).append('\n');
+		}
+	}
+
+	private static String javaString(String value) {
+		final StringBuilder literal = new StringBuilder("\"");
+		for (char c : value.toCharArray()) {
+			switch (c) {
+			case '"':
+				literal.append("\\\"");
+				break;
+			case '\\':
+				literal.append("\\\\");
+				break;
+			case '\n':
+				literal.append("\\n");
+				break;
+			case '\r':
+				literal.append("\\r");
+				break;
+			case '\t':
+				literal.append("\\t");
+				break;
+			default:
+				if (c < 0x20 || c > 0x7e) {
+					literal.append(String.format("\\u%04x", (int) c));
+				}
+				else {
+					literal.append(c);
+				}
+			}
+		}
+		return literal.append('"').toString();
+	}
+
+	private static class SourceFile extends SimpleJavaFileObject {
+		private final String source;
+
+		SourceFile(String className, String source) {
+			super(URI.create(String.format("string:///%s/%s.java", PACKAGE.replace('.', '/'), className)), Kind.SOURCE);
+			this.source = source;
+		}
+
+		@Override
+		public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+			return source;
+		}
+	}
+
+	/**
+	 * Keeps the class files javac writes in memory.
+	 */
+	private static class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+		final Map<String, byte[]> classes = new LinkedHashMap<>();
+
+		MemoryFileManager(StandardJavaFileManager fileManager) {
+			super(fileManager);
+		}
+
+		@Override
+		public JavaFileObject getJavaFileForOutput(JavaFileManager.Location location, String className,
+				JavaFileObject.Kind kind, FileObject sibling) {
+			return new SimpleJavaFileObject(URI.create(String.format("mem:///%s.class", className.replace('.', '/'))), kind) {
+				@Override
+				public OutputStream openOutputStream() {
+					return new ByteArrayOutputStream() {
+						@Override
+						public void close() {
+							classes.put(className, toByteArray());
+						}
+					};
+				}
+			};
+		}
+	}
+}
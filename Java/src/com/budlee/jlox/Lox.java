@@ -3,31 +3,142 @@ package com.budlee.jlox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 public class Lox {
 	private static final Interpreter interpreter = new Interpreter();
 	private static final ReplInterpreter replInterpreter = new ReplInterpreter();
+	private static VM vm;
+	private static JvmCompiler jvmCompiler;
+	private static ClosureCompiler closureCompiler;
+	private static Optimizer optimizer;
+	private static boolean stream;
 	private static boolean hadError;
 	private static boolean hadRuntimeError = false;
+	/**
+	 * Stack the Interpreter's thread gets for each Lox call it may nest. A call through the tree-walker whose body
+	 * nests a few blocks, a loop and an arithmetic expression around the next call takes about 8 KB of Java frames
+	 * while they are still interpreted by the JVM, and this leaves twice that. Deeper nesting can still run out of
+	 * Java stack first, which the Interpreter reports as a stack overflow like reaching the limit.
+	 */
+	private static final long STACK_BYTES_PER_CALL = 16384;
+	/**
+	 * The most stack the Interpreter's thread may ask for, which bounds the call depth --max-depth accepts.
+	 */
+	private static final long MAX_STACK_BYTES = 1L << 30;
 
-	public static void main(String[] args) throws IOException {
-		if (args.length > 1) {
-			System.out.println("usage: jlox [scrpts]");
-			System.exit(64);
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String script = null;
+		int maxDepth = VM.DEFAULT_MAX_FRAMES;
+		int backends = 0;
+		for (String arg : args) {
+			if (arg.equals("--vm")) {
+				vm = new VM();
+				backends++;
+			}
+			else if (arg.equals("--closures")) {
+				closureCompiler = new ClosureCompiler(interpreter);
+				backends++;
+			}
+			else if (arg.equals("--jit")) {
+				backends++;
+				final TieredCompiler tieredCompiler = new TieredCompiler();
+				interpreter.tieredCompiler = tieredCompiler;
+				replInterpreter.tieredCompiler = tieredCompiler;
+			}
+			else if (arg.equals("--optimize")) {
+				optimizer = new Optimizer();
+			}
+			else if (arg.equals("--stream")) {
+				stream = true;
+			}
+			else if (arg.equals("--aot")) {
+				jvmCompiler = new JvmCompiler(null);
+				backends++;
+			}
+			else if (arg.startsWith("--aot-jar=")) {
+				jvmCompiler = new JvmCompiler(Paths.get(arg.substring("--aot-jar=".length())));
+				backends++;
+			}
+			else if (arg.matches("--max-depth=[1-9][0-9]{0,8}")) {
+				maxDepth = Integer.parseInt(arg.substring("--max-depth=".length()));
+				if (maxDepth * STACK_BYTES_PER_CALL > MAX_STACK_BYTES) {
+					System.err.println("--max-depth can be at most " + MAX_STACK_BYTES / STACK_BYTES_PER_CALL + ".");
+					usage();
+				}
+			}
+			else if (arg.startsWith("--") || Objects.nonNull(script)) {
+				usage();
+			}
+			else {
+				script = arg;
+			}
 		}
-		else if (args.length == 1) {
-			runFile(args[0]);
+		// One backend runs the program, so they cannot be combined.
+		if (backends > 1) {
+			usage();
 		}
-		else {
-			runPrompt();
+		// The JVM backend compiles the whole script into one class, so it cannot run it as it is parsed.
+		if (stream && Objects.nonNull(jvmCompiler)) {
+			usage();
+		}
+		if (stream && Objects.nonNull(optimizer)) {
+			optimizer.streaming = true;
+		}
+		interpreter.maxDepth = maxDepth;
+		replInterpreter.maxDepth = maxDepth;
+		if (Objects.nonNull(vm)) {
+			vm.maxFrames = maxDepth;
+		}
+
+		// The Interpreter recurses on the Java stack, so it runs on a thread with room for the deepest calls allowed.
+		final String path = script;
+		final FutureTask<Void> task = new FutureTask<>(() -> {
+			if (Objects.nonNull(path)) {
+				runFile(path);
+			}
+			else {
+				runPrompt();
+			}
+			return null;
+		});
+		final Thread thread = new Thread(null, task, "jlox", maxDepth * STACK_BYTES_PER_CALL);
+		thread.start();
+		try {
+			task.get();
+		}
+		catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			// Parsing or resolving a script nested too deeply runs out of stack outside the Interpreter.
+			if (cause instanceof StackOverflowError) {
+				System.err.println("Stack overflow.");
+				System.exit(70);
+			}
+			throw (Error) cause;
 		}
 	}
 
+	private static void usage() {
+		System.out.println("usage: jlox [--vm | --closures | --jit | --aot | --aot-jar=<jar>] " +
+				"[--optimize] [--stream] [--max-depth=<calls>] [scrpts]");
+		System.exit(64);
+	}
+
 	private static void runPrompt() throws IOException {
 		final InputStreamReader inputStreamReader = new InputStreamReader(System.in);
 		final BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
@@ -38,14 +149,24 @@ public class Lox {
 			if (Objects.isNull(line)) {
 				break;
 			}
-			run(line, replInterpreter);
+			run(new LoxScanner(line), replInterpreter);
 			hadError = false;
 		}
 	}
 
 	private static void runFile(String path) throws IOException {
-		final byte[] bytes = Files.readAllBytes(Paths.get(path));
-		run(new String(bytes, Charset.defaultCharset()), interpreter);
+		// The scanner reads the file's bytes where they are mapped rather than a copy decoded into a String.
+		final ByteBuffer source;
+		try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+			source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		final LoxScanner scanner = new LoxScanner(source, Charset.defaultCharset());
+		if (stream) {
+			runStreaming(scanner, interpreter);
+		}
+		else {
+			run(scanner, interpreter);
+		}
 		if (hadError) {
 			System.exit(65);
 		}
@@ -54,10 +175,9 @@ public class Lox {
 		}
 	}
 
-	private static void run(String source, Interpreter interpreter) {
-		final LoxScanner scanner = new LoxScanner(source);
-		final List<Token> tokens = scanner.scanTokens();
-//		tokens.stream()
+	private static void run(LoxScanner scanner, Interpreter interpreter) {
+		final TokenStream tokens = scanner.scan();
+//		tokens.asList()
 //				.forEach(System.out::println);
 		Parser parser = new Parser(tokens);
 		List<Stmt> statements = parser.parse();
@@ -66,7 +186,7 @@ public class Lox {
 			return;
 		}
 
-		Resolver resolver = new Resolver(interpreter);
+		Resolver resolver = new Resolver(interpreter.globals);
 		resolver.resolve(statements);
 
 		if (hadError) {
@@ -74,6 +194,54 @@ public class Lox {
 		}
 
 //		System.out.println(new ASTPrinter().print(expression));
+		// The REPL prints the value of expression statements, so it keeps them all.
+		if (Objects.nonNull(optimizer) && interpreter != replInterpreter) {
+			statements = optimizer.optimize(statements);
+		}
+		execute(statements, interpreter);
+	}
+
+	/**
+	 * Runs each top-level declaration as soon as it is parsed, so a script's output starts before the rest of it
+	 * is read and the tokens and trees of the declarations already run can be collected. Once there is an error
+	 * nothing more is run, though the rest of the script is still parsed and resolved to report its errors.
+	 */
+	private static void runStreaming(LoxScanner scanner, Interpreter interpreter) {
+		final Parser parser = new Parser(scanner.stream());
+		while (parser.hasNext() && !hadRuntimeError) {
+			final Stmt statement = parser.next();
+			if (Objects.isNull(statement)) {
+				continue;
+			}
+			List<Stmt> statements = Collections.singletonList(statement);
+			new Resolver(interpreter.globals).resolve(statements);
+			if (hadError) {
+				continue;
+			}
+			if (Objects.nonNull(optimizer)) {
+				statements = optimizer.optimize(statements);
+			}
+			execute(statements, interpreter);
+		}
+	}
+
+	private static void execute(List<Stmt> statements, Interpreter interpreter) {
+		// The REPL echoes expression statements itself, so only scripts are compiled.
+		if (Objects.nonNull(vm) && interpreter != replInterpreter) {
+			vm.interpret(statements);
+			return;
+		}
+		if (Objects.nonNull(jvmCompiler) && interpreter != replInterpreter) {
+			final CompiledScript script = jvmCompiler.compile(statements);
+			if (Objects.nonNull(script)) {
+				interpreter.interpret(script, statements);
+				return;
+			}
+		}
+		if (Objects.nonNull(closureCompiler) && interpreter != replInterpreter) {
+			interpreter.interpret(closureCompiler.compile(statements));
+			return;
+		}
 		interpreter.interpret(statements);
 //		Lox.interpreter.interpret(statements);
 
@@ -99,7 +267,7 @@ public class Lox {
 	}
 
 	static void runtimeError(RuntimeError error) {
-		System.err.println(error.getMessage() + String.format("\n[line %s]", error.token.line));
+		System.err.println(error.getMessage() + String.format("\n[line %s]", error.line));
 		hadRuntimeError = true;
 	}
 }
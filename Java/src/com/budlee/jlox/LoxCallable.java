@@ -1,8 +1,12 @@
 package com.budlee.jlox;
 
-import java.util.List;
-
+/**
+ * Arguments are passed in a fresh array the callee may keep, a function with no other locals uses it as its frame.
+ * The paren is the call's, where a call that fails once it is made is reported.
+ */
 public interface LoxCallable {
+	Object[] NO_ARGUMENTS = new Object[0];
+
 	int arity();
-	Object call(Interpreter interpreter, List<Object> arguments);
+	Object call(Interpreter interpreter, Token paren, Object[] arguments);
 }
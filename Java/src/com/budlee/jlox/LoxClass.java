@@ -1,35 +1,40 @@
 package com.budlee.jlox;
 
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
 
+/**
+ * A class's method table is flattened when it is defined, inherited methods copied in under its own, so finding
+ * a method is one lookup however deep the hierarchy. The initializer and so the arity are looked up once too.
+ */
 public class LoxClass implements LoxCallable{
 	final String name;
-	private final LoxClass superclass;
-	private final Map<String, LoxFunction> methods;
+	private final Map<String, LoxFunction> methods = new HashMap<>();
+	private final LoxFunction initializer;
+	private final int arity;
+	final Shape shape = new Shape();
 
 	public LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
 		this.name = name;
-		this.superclass = superclass;
-		this.methods = methods;
+		if(Objects.nonNull(superclass)){
+			this.methods.putAll(superclass.methods);
+		}
+		this.methods.putAll(methods);
+		this.initializer = this.methods.get("init");
+		this.arity = Objects.isNull(initializer) ? 0 : initializer.arity();
 	}
 
 	@Override
 	public int arity() {
-		final LoxFunction initializer = findMethod("init");
-		if(Objects.isNull(initializer)){
-			return 0;
-		}
-		return initializer.arity();
+		return arity;
 	}
 
 	@Override
-	public Object call(Interpreter interpreter, List<Object> arguments) {
+	public Object call(Interpreter interpreter, Token paren, Object[] arguments) {
 		final LoxInstance instance = new LoxInstance(this);
-		final LoxFunction initializer = findMethod("init");
 		if(Objects.nonNull(initializer)){
-			initializer.bind(instance).call(interpreter,arguments);
+			initializer.invoke(interpreter, paren, instance, arguments);
 		}
 		return instance;
 	}
@@ -40,12 +45,6 @@ public class LoxClass implements LoxCallable{
 	}
 
 	LoxFunction findMethod(String name) {
-		if(methods.containsKey(name)){
-			return methods.get(name);
-		}
-		if(Objects.nonNull(superclass)){
-			return superclass.findMethod(name);
-		}
-		return null;
+		return methods.get(name);
 	}
 }
@@ -1,17 +1,23 @@
 package com.budlee.jlox;
 
-import java.util.List;
+import java.util.Objects;
 
 public class LoxFunction implements LoxCallable {
 
 	private final Stmt.Function decleration;
 	private final Environment closure;
+	private final LoxInstance receiver;
 	private boolean isInitializer;
 
 	public LoxFunction(Stmt.Function decleration, Environment closure, boolean isInitializer) {
+		this(decleration, closure, isInitializer, null);
+	}
+
+	private LoxFunction(Stmt.Function decleration, Environment closure, boolean isInitializer, LoxInstance receiver) {
 		this.decleration = decleration;
 		this.closure = closure;
 		this.isInitializer = isInitializer;
+		this.receiver = receiver;
 	}
 
 	@Override
@@ -20,24 +26,70 @@ public class LoxFunction implements LoxCallable {
 	}
 
 	@Override
-	public Object call(Interpreter interpreter, List<Object> arguments) {
-		final Environment environment = new Environment(closure);
-		for (int i = 0; i < decleration.params.size(); i++) {
-			environment.define(decleration.params.get(i).lexme, arguments.get(i));
-		}
+	public Object call(Interpreter interpreter, Token paren, Object[] arguments) {
+		return invoke(interpreter, paren, receiver, arguments);
+	}
+
+	/**
+	 * Calls the function with the given receiver, so a method call does not have to bind the method first.
+	 * A body that ends in a tail call hands the call back rather than making it, and it is made here in its place.
+	 */
+	Object invoke(Interpreter interpreter, Token paren, LoxInstance receiver, Object[] arguments) {
+		interpreter.enterCall(paren);
 		try {
-			interpreter.executeBlock(decleration.body, environment);
+			Object result = execute(interpreter, receiver, arguments);
+			while (result instanceof TailCall) {
+				final TailCall call = (TailCall) result;
+				result = call.function.execute(interpreter, call.receiver, call.arguments);
+			}
+			return result;
+		}
+		finally {
+			interpreter.exitCall();
+		}
+	}
+
+	private Object execute(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+		final CompiledFunction compiled = decleration.compiled;
+		if (Objects.nonNull(compiled) && !isInitializer) {
+			return compiled.call(interpreter, arguments);
+		}
+		interpreter.countCall(decleration);
+		// Locals of the body that closures capture get a scope of their own, the only part of the call they keep.
+		final Environment enclosing = decleration.captureCount == 0 ? closure :
+				new Environment(closure, decleration.captureCount);
+		final Environment environment;
+		if (!decleration.isMethod && arguments.length == decleration.slotCount) {
+			environment = new Environment(enclosing, arguments);
 		}
-		catch (Return returnValue) {
-			if(isInitializer){
-				return closure.getAt(0, "this");
+		else {
+			environment = new Environment(enclosing, decleration.slotCount);
+			int slot = 0;
+			if (decleration.isMethod) {
+				environment.define(slot++, receiver);
 			}
-			return returnValue.value;
+			for (Object argument : arguments) {
+				environment.define(slot++, argument);
+			}
+		}
+		final int[] capturedParameters = decleration.capturedParameters;
+		for (int i = 0; i < capturedParameters.length; i++) {
+			enclosing.define(i, environment.getAt(0, capturedParameters[i]));
+		}
+		final Object completion;
+		if (Objects.nonNull(decleration.node)) {
+			completion = decleration.node.execute(environment);
+		}
+		else {
+			completion = interpreter.executeBlock(decleration.body, environment);
 		}
 		if (isInitializer){
-			return closure.getAt(0, "this");
+			return receiver;
+		}
+		if (completion == Interpreter.NORMAL) {
+			return null;
 		}
-		return null;
+		return completion;
 	}
 
 	@Override
@@ -45,9 +97,22 @@ public class LoxFunction implements LoxCallable {
 		return String.format("<fn %s>", decleration.name.lexme);
 	}
 
+	Stmt.Function declaration() {
+		return decleration;
+	}
+
+	/**
+	 * Lets compiled code check a callee is the function it was compiled to call directly.
+	 */
+	boolean runs(CompiledFunction body) {
+		return decleration.compiled == body;
+	}
+
+	TailCall tailCall(Object[] arguments) {
+		return new TailCall(this, receiver, arguments);
+	}
+
 	LoxFunction bind(LoxInstance instance) {
-		final Environment environment = new Environment(closure);
-		environment.define("this", instance);
-		return new LoxFunction(decleration, environment, isInitializer);
+		return new LoxFunction(decleration, closure, isInitializer, instance);
 	}
 }
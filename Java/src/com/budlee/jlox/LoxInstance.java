@@ -1,20 +1,23 @@
 package com.budlee.jlox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.Objects;
 
 public class LoxInstance {
-	private LoxClass klass;
-	private final Map<String, Object> fields = new HashMap<>();
+	final LoxClass klass;
+	Shape shape;
+	Object[] fields;
 
 	public LoxInstance(LoxClass klass) {
 		this.klass = klass;
+		this.shape = klass.shape;
+		this.fields = shape.newFields();
 	}
 
 	Object get(Token name){
-		if (fields.containsKey(name.lexme)){
-			return fields.get(name.lexme);
+		final int slot = shape.slotOf(name.lexme);
+		if (slot >= 0){
+			return fields[slot];
 		}
 		LoxFunction method = klass.findMethod(name.lexme);
 		if(Objects.nonNull(method)){
@@ -30,6 +33,25 @@ public class LoxInstance {
 	}
 
 	void set(Token name, Object value) {
-		fields.put(name.lexme, value);
+		final int slot = shape.slotOf(name.lexme);
+		if (slot >= 0) {
+			fields[slot] = value;
+			return;
+		}
+		final Shape next = shape.withField(name.lexme);
+		store(next, next.size - 1, value);
+	}
+
+	/**
+	 * Stores a field whose slot is already known, moving the instance to the shape that has it.
+	 */
+	void store(Shape shape, int slot, Object value) {
+		if (this.shape != shape) {
+			this.shape = shape;
+			if (fields.length < shape.size) {
+				fields = Arrays.copyOf(fields, shape.size);
+			}
+		}
+		fields[slot] = value;
 	}
 }
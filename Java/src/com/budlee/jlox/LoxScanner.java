@@ -1,56 +1,73 @@
 package com.budlee.jlox;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Objects;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
+/**
+ * Scans the source into a TokenStream, which holds where each token is rather than a copy of it, so scanning
+ * allocates little more than the stream's arrays however large the script is.
+ *
+ * The source is scanned as bytes, which may be a file mapped into memory. Everything but string literals and
+ * comments is ASCII, which is the same bytes in UTF-8 and the other charsets a script could be written in, so
+ * only the text of tokens is decoded and only when the Parser asks for it.
+ */
 public class LoxScanner {
 
-	private static final Map<String, TokenType> KEYWORDS;
-
-	static {
-		Map<String, TokenType> keywordsTempMap = new HashMap<>();
-		keywordsTempMap.put("and", TokenType.AND);
-		keywordsTempMap.put("class", TokenType.CLASS);
-		keywordsTempMap.put("else", TokenType.ELSE);
-		keywordsTempMap.put("false", TokenType.FALSE);
-		keywordsTempMap.put("for", TokenType.FOR);
-		keywordsTempMap.put("fun", TokenType.FUN);
-		keywordsTempMap.put("if", TokenType.IF);
-		keywordsTempMap.put("nil", TokenType.NIL);
-		keywordsTempMap.put("or", TokenType.OR);
-		keywordsTempMap.put("print", TokenType.PRINT);
-		keywordsTempMap.put("return", TokenType.RETURN);
-		keywordsTempMap.put("super", TokenType.SUPER);
-		keywordsTempMap.put("this", TokenType.THIS);
-		keywordsTempMap.put("true", TokenType.TRUE);
-		keywordsTempMap.put("var", TokenType.VAR);
-		keywordsTempMap.put("while", TokenType.WHILE);
-
-		KEYWORDS = Collections.unmodifiableMap(keywordsTempMap);
-	}
-
-	private final String source;
-	private final List<Token> tokens = new ArrayList<>();
+	private final ByteBuffer source;
+	private final int length;
+	private final TokenStream tokens;
 	private int start = 0;
 	private int current = 0;
 	private int line = 1;
+	private boolean scannedEof;
 
 
 	public LoxScanner(String source) {
+		this(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param charset what the bytes of string literals and comments are text in
+	 */
+	LoxScanner(ByteBuffer source, Charset charset) {
 		this.source = source;
+		this.length = source.limit();
+		this.tokens = new TokenStream(source, charset, this);
+	}
+
+	TokenStream scan() {
+		while (scanMore()) {
+		}
+		return tokens;
 	}
 
-	List<Token> scanTokens() {
-		while (!isAtEnd()) {
+	/**
+	 * @return the stream of tokens, which are scanned as they are read
+	 */
+	TokenStream stream() {
+		return tokens;
+	}
+
+	/**
+	 * Scans until there is another token, which is EOF at the end.
+	 *
+	 * @return false if EOF was already scanned
+	 */
+	boolean scanMore() {
+		if (scannedEof) {
+			return false;
+		}
+		final int end = tokens.end();
+		while (!isAtEnd() && tokens.end() == end) {
 			start = current;
 			scanToken();
 		}
-		tokens.add(new Token(TokenType.EOF, "", null, line));
-		return tokens;
+		if (isAtEnd() && tokens.end() == end) {
+			tokens.add(TokenType.EOF, current, 0, line);
+			scannedEof = true;
+		}
+		return true;
 	}
 
 	private void scanToken() {
@@ -129,7 +146,8 @@ public class LoxScanner {
 			else if (isAlpha(c)) {
 				identifier();
 			}
-			else {
+			// A character that is not ASCII is reported once, at its first byte.
+			else if ((c & 0xC0) != 0x80) {
 				Lox.error(line, "Unexpected character.");
 			}
 			break;
@@ -149,7 +167,7 @@ public class LoxScanner {
 		}
 		advance();
 		advance();
-		String value = source.substring(start + 2, current - 2);
+		String value = tokens.text(start + 2, current - 2);
 		System.out.println(String.format("Comment block was [%s]", value));
 	}
 
@@ -163,12 +181,72 @@ public class LoxScanner {
 		while (isAlphaNumeric(peek())) {
 			advance();
 		}
-		var text = source.substring(start, current);
-		TokenType tokenType = KEYWORDS.get(text);
-		if (Objects.isNull(tokenType)) {
-			tokenType = TokenType.IDENTIFIER;
+		addToken(keyword());
+	}
+
+	/**
+	 * Tells keywords from other identifiers by their first letters, then checks the rest is spelled the same.
+	 */
+	private TokenType keyword() {
+		switch (charAt(start)) {
+		case 'a':
+			return rest(1, "nd", TokenType.AND);
+		case 'c':
+			return rest(1, "lass", TokenType.CLASS);
+		case 'e':
+			return rest(1, "lse", TokenType.ELSE);
+		case 'f':
+			if (current - start > 1) {
+				switch (charAt(start + 1)) {
+				case 'a':
+					return rest(2, "lse", TokenType.FALSE);
+				case 'o':
+					return rest(2, "r", TokenType.FOR);
+				case 'u':
+					return rest(2, "n", TokenType.FUN);
+				}
+			}
+			break;
+		case 'i':
+			return rest(1, "f", TokenType.IF);
+		case 'n':
+			return rest(1, "il", TokenType.NIL);
+		case 'o':
+			return rest(1, "r", TokenType.OR);
+		case 'p':
+			return rest(1, "rint", TokenType.PRINT);
+		case 'r':
+			return rest(1, "eturn", TokenType.RETURN);
+		case 's':
+			return rest(1, "uper", TokenType.SUPER);
+		case 't':
+			if (current - start > 1) {
+				switch (charAt(start + 1)) {
+				case 'h':
+					return rest(2, "is", TokenType.THIS);
+				case 'r':
+					return rest(2, "ue", TokenType.TRUE);
+				}
+			}
+			break;
+		case 'v':
+			return rest(1, "ar", TokenType.VAR);
+		case 'w':
+			return rest(1, "hile", TokenType.WHILE);
 		}
-		addToken(tokenType);
+		return TokenType.IDENTIFIER;
+	}
+
+	private TokenType rest(int offset, String rest, TokenType keyword) {
+		if (current - start != offset + rest.length()) {
+			return TokenType.IDENTIFIER;
+		}
+		for (int i = 0; i < rest.length(); i++) {
+			if (charAt(start + offset + i) != rest.charAt(i)) {
+				return TokenType.IDENTIFIER;
+			}
+		}
+		return keyword;
 	}
 
 	private boolean isAlphaNumeric(char c) {
@@ -186,15 +264,14 @@ public class LoxScanner {
 		while (isDigit(peek())) {
 			advance();
 		}
-		addToken(TokenType.NUMBER,
-				Double.parseDouble(source.substring(start, current)));
+		addToken(TokenType.NUMBER);
 	}
 
 	private char peekNext() {
-		if (current + 1 >= source.length()) {
+		if (current + 1 >= length) {
 			return '\0';
 		}
-		return source.charAt(current + 1);
+		return charAt(current + 1);
 	}
 
 	private boolean isDigit(char c) {
@@ -216,20 +293,19 @@ public class LoxScanner {
 			return;
 		}
 		advance();
-		String value = source.substring(start + 1, current - 1);
-		addToken(TokenType.STRING, value);
+		addToken(TokenType.STRING);
 	}
 
 	private char peek() {
 		return isAtEnd() ? '\0'
-				: source.charAt(current);
+				: charAt(current);
 	}
 
 	private boolean match(char expected) {
 		if (isAtEnd()) {
 			return false;
 		}
-		if (source.charAt(current) != expected) {
+		if (charAt(current) != expected) {
 			return false;
 		}
 		current++;
@@ -238,12 +314,7 @@ public class LoxScanner {
 	}
 
 	private void addToken(TokenType tokenType) {
-		addToken(tokenType, null);
-	}
-
-	private void addToken(TokenType tokenType, Object literal) {
-		String text = source.substring(start, current);
-		tokens.add(new Token(tokenType, text, literal, line));
+		tokens.add(tokenType, start, current - start, line);
 	}
 
 	/**
@@ -251,10 +322,17 @@ public class LoxScanner {
 	 * @return The current character
 	 */
 	private char advance() {
-		return source.charAt(current++);
+		return charAt(current++);
+	}
+
+	/**
+	 * @return the byte as a char, which is the character itself when it is ASCII
+	 */
+	private char charAt(int index) {
+		return (char) (source.get(index) & 0xFF);
 	}
 
 	private boolean isAtEnd() {
-		return current >= source.length();
+		return current >= length;
 	}
 }
@@ -0,0 +1,52 @@
+package com.budlee.jlox;
+
+/**
+ * A function implemented in Java. Every native implements callArray, which the fixed arity methods fall back to.
+ * Calls with up to two arguments go to the fixed arity methods, so a native with one or two parameters can
+ * override its method as a fast path that never needs an array.
+ */
+abstract class NativeFunction implements LoxCallable {
+	private final int arity;
+
+	NativeFunction(int arity) {
+		this.arity = arity;
+	}
+
+	@Override
+	public int arity() {
+		return arity;
+	}
+
+	@Override
+	public final Object call(Interpreter interpreter, Token paren, Object[] arguments) {
+		switch (arguments.length) {
+		case 0:
+			return call0(interpreter);
+		case 1:
+			return call1(interpreter, arguments[0]);
+		case 2:
+			return call2(interpreter, arguments[0], arguments[1]);
+		default:
+			return callArray(interpreter, arguments);
+		}
+	}
+
+	Object call0(Interpreter interpreter) {
+		return callArray(interpreter, NO_ARGUMENTS);
+	}
+
+	Object call1(Interpreter interpreter, Object argument) {
+		return callArray(interpreter, new Object[]{argument});
+	}
+
+	Object call2(Interpreter interpreter, Object first, Object second) {
+		return callArray(interpreter, new Object[]{first, second});
+	}
+
+	abstract Object callArray(Interpreter interpreter, Object[] arguments);
+
+	@Override
+	public String toString() {
+		return "<native fn>";
+	}
+}
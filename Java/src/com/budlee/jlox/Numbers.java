@@ -0,0 +1,30 @@
+package com.budlee.jlox;
+
+/**
+ * Boxes the results of Lox arithmetic. Lox values are Objects so a number has to be a Double once it is stored,
+ * but the small whole numbers loops and counters keep producing are handed out from a table instead of allocated.
+ */
+final class Numbers {
+	private static final int CACHE_LOW = -128;
+	private static final int CACHE_HIGH = 1024;
+	private static final Double[] CACHE = new Double[CACHE_HIGH - CACHE_LOW];
+
+	static {
+		for (int i = 0; i < CACHE.length; i++) {
+			CACHE[i] = (double) (i + CACHE_LOW);
+		}
+	}
+
+	private Numbers() {
+	}
+
+	static Double box(double value) {
+		final int integer = (int) value;
+		// -0.0 equals 0 but prints differently, so it is never given the cached zero.
+		if (integer == value && integer >= CACHE_LOW && integer < CACHE_HIGH &&
+				(integer != 0 || Double.doubleToRawLongBits(value) == 0L)) {
+			return CACHE[integer - CACHE_LOW];
+		}
+		return value;
+	}
+}
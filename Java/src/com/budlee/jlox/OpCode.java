@@ -0,0 +1,57 @@
+package com.budlee.jlox;
+
+/**
+ * The instructions understood by the VM. Operands follow the opcode in the chunk:
+ * constant indexes and jump offsets are two bytes, local, upvalue and argument counts are one byte.
+ */
+final class OpCode {
+	static final byte CONSTANT = 0;
+	static final byte NIL = 1;
+	static final byte TRUE = 2;
+	static final byte FALSE = 3;
+	static final byte POP = 4;
+	static final byte GET_LOCAL = 5;
+	static final byte SET_LOCAL = 6;
+	static final byte GET_GLOBAL = 7;
+	static final byte DEFINE_GLOBAL = 8;
+	static final byte SET_GLOBAL = 9;
+	static final byte GET_UPVALUE = 10;
+	static final byte SET_UPVALUE = 11;
+	static final byte GET_PROPERTY = 12;
+	static final byte SET_PROPERTY = 13;
+	static final byte GET_SUPER = 14;
+	static final byte EQUAL = 15;
+	static final byte NOT_EQUAL = 16;
+	static final byte GREATER = 17;
+	static final byte GREATER_EQUAL = 18;
+	static final byte LESS = 19;
+	static final byte LESS_EQUAL = 20;
+	static final byte ADD = 21;
+	static final byte SUBTRACT = 22;
+	static final byte MULTIPLY = 23;
+	static final byte DIVIDE = 24;
+	static final byte NOT = 25;
+	static final byte NEGATE = 26;
+	static final byte PRINT = 27;
+	static final byte JUMP = 28;
+	static final byte JUMP_IF_FALSE = 29;
+	static final byte LOOP = 30;
+	static final byte CALL = 31;
+	static final byte INVOKE = 32;
+	static final byte SUPER_INVOKE = 33;
+	static final byte CLOSURE = 34;
+	static final byte CLOSE_UPVALUE = 35;
+	static final byte RETURN = 36;
+	static final byte CLASS = 37;
+	static final byte INHERIT = 38;
+	static final byte METHOD = 39;
+	/**
+	 * The calls a function returns the result of, which take over the caller's frame.
+	 */
+	static final byte TAIL_CALL = 40;
+	static final byte TAIL_INVOKE = 41;
+	static final byte TAIL_SUPER_INVOKE = 42;
+
+	private OpCode() {
+	}
+}
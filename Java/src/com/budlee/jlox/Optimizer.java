@@ -0,0 +1,965 @@
+package com.budlee.jlox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Stack;
+
+/**
+ * Simplifies resolved code before it is run, by any of the backends.
+ *
+ * Arithmetic, comparisons and concatenation on literals are folded, locals that are never assigned after being
+ * initialised with a literal are replaced by it, branches that can never run are dropped along with statements
+ * after a return and expression statements that have no effect. Anything that could fail at runtime, such as a
+ * division by zero or adding a string to a number, is left alone so the error is still reported where it was.
+ *
+ * Within a scope the optimizer also keeps values in temporaries: the parts of a loop that cannot change while it
+ * runs are computed once before it, and a property load or arithmetic repeated in a run of statements is computed
+ * once, as long as nothing in between could change it. Stores to locals that are never read are dropped.
+ *
+ * Nodes are rebuilt with the slots the Resolver gave them when their children change, except functions, which
+ * other nodes refer to and so have their bodies replaced in place.
+ */
+final class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+	private static final Object NOT_FOLDED = new Object();
+
+	/**
+	 * The slots of a frame at runtime, what the Resolver found about them and the temporaries added after them.
+	 * Captured locals live outside any frame and are left alone.
+	 */
+	private static final class Scope {
+		final Expr.Literal[] constants;
+		final boolean[] reassigned;
+		final boolean[] read;
+		int slotCount;
+
+		Scope(int slotCount, boolean[] reassigned, boolean[] read) {
+			this.constants = new Expr.Literal[slotCount];
+			this.reassigned = reassigned;
+			this.read = read;
+			this.slotCount = slotCount;
+		}
+
+		boolean isConstant(int slot) {
+			return slot < reassigned.length && !reassigned[slot];
+		}
+	}
+
+	private final Stack<Scope> scopes = new Stack<>();
+	/**
+	 * Loading a method binds it to a new object each time, so only loads of other names can be reused.
+	 */
+	private final Set<String> methodNames = new HashSet<>();
+	/**
+	 * Whether the program is optimized a declaration at a time as it is streamed, when the methods of classes
+	 * declared later are not known yet and any name could be one.
+	 */
+	boolean streaming;
+	private int temporaries = 0;
+	/**
+	 * Where the temporaries of the frame being optimized are declared, ahead of its statements, so that adding them
+	 * changes the shape of no block within it.
+	 */
+	private List<Stmt> declarations;
+	/**
+	 * Whether the code optimized since the enclosing loop began makes a call, and the properties it sets.
+	 */
+	private boolean calls = false;
+	private Set<String> setProperties = new HashSet<>();
+
+	List<Stmt> optimize(List<Stmt> statements) {
+		collectMethodNames(statements);
+		return optimizeAll(statements);
+	}
+
+	private boolean isMethodName(String name) {
+		return streaming || methodNames.contains(name);
+	}
+
+	private void collectMethodNames(List<Stmt> statements) {
+		for (Stmt statement : statements) {
+			if (statement instanceof Stmt.Class) {
+				for (Stmt.Function method : ((Stmt.Class) statement).methods) {
+					methodNames.add(method.name.lexme);
+					collectMethodNames(method.body);
+				}
+			}
+			else if (statement instanceof Stmt.Function) {
+				collectMethodNames(((Stmt.Function) statement).body);
+			}
+			else if (statement instanceof Stmt.Block) {
+				collectMethodNames(((Stmt.Block) statement).statements);
+			}
+			else if (statement instanceof Stmt.If) {
+				collectMethodNames(List.of(((Stmt.If) statement).thenBranch));
+				if (Objects.nonNull(((Stmt.If) statement).elseBranch)) {
+					collectMethodNames(List.of(((Stmt.If) statement).elseBranch));
+				}
+			}
+			else if (statement instanceof Stmt.While) {
+				collectMethodNames(List.of(((Stmt.While) statement).body));
+			}
+		}
+	}
+
+	private List<Stmt> optimizeAll(List<Stmt> statements) {
+		final List<Stmt> optimized = new ArrayList<>(statements.size());
+		for (Stmt statement : statements) {
+			Stmt result;
+			if (statement instanceof Stmt.While && !scopes.isEmpty()) {
+				result = optimizeLoop((Stmt.While) statement, optimized);
+			}
+			else {
+				result = optimize(statement);
+			}
+			if (Objects.isNull(result)) {
+				continue;
+			}
+			optimized.add(result);
+			if (result instanceof Stmt.Return) {
+				break;
+			}
+		}
+		if (scopes.isEmpty()) {
+			return optimized;
+		}
+		return reuseValues(optimized);
+	}
+
+	/**
+	 * Optimizes the statements of a frame, with the temporaries it needs declared first.
+	 */
+	private List<Stmt> optimizeFrame(List<Stmt> statements) {
+		final List<Stmt> enclosing = declarations;
+		declarations = new ArrayList<>();
+		final List<Stmt> optimized = optimizeAll(statements);
+		final List<Stmt> frame = declarations;
+		declarations = enclosing;
+		if (frame.isEmpty()) {
+			return optimized;
+		}
+		frame.addAll(optimized);
+		return frame;
+	}
+
+	/**
+	 * @return the simplified statement, or null if it does nothing
+	 */
+	private Stmt optimize(Stmt stmt) {
+		return stmt.accept(this);
+	}
+
+	/**
+	 * For places that need a statement even when it does nothing.
+	 */
+	private Stmt optimizeBranch(Stmt stmt) {
+		final Stmt result = optimize(stmt);
+		if (Objects.isNull(result)) {
+			return new Stmt.Block(List.of());
+		}
+		return result;
+	}
+
+	private Expr optimize(Expr expr) {
+		return expr.accept(this);
+	}
+
+	@Override
+	public Stmt visitBlockStmt(Stmt.Block stmt) {
+		if (!stmt.newFrame) {
+			final List<Stmt> statements = optimizeAll(stmt.statements);
+			if (statements.isEmpty()) {
+				return null;
+			}
+			final Stmt.Block block = new Stmt.Block(statements);
+			block.captureCount = stmt.captureCount;
+			return block;
+		}
+		final Scope scope = new Scope(stmt.slotCount, stmt.reassigned, stmt.read);
+		scopes.push(scope);
+		final List<Stmt> statements = optimizeFrame(stmt.statements);
+		scopes.pop();
+		if (statements.isEmpty()) {
+			return null;
+		}
+		final Stmt.Block block = new Stmt.Block(statements);
+		block.newFrame = true;
+		block.captureCount = stmt.captureCount;
+		block.slotCount = scope.slotCount;
+		block.reassigned = stmt.reassigned;
+		block.read = stmt.read;
+		return block;
+	}
+
+	@Override
+	public Stmt visitClassStmt(Stmt.Class stmt) {
+		stmt.methods.forEach(this::optimizeBody);
+		return stmt;
+	}
+
+	@Override
+	public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+		final Expr expression = optimize(stmt.expression);
+		if (isPure(expression)) {
+			return null;
+		}
+		return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+	}
+
+	@Override
+	public Stmt visitFunctionStmt(Stmt.Function stmt) {
+		optimizeBody(stmt);
+		return stmt;
+	}
+
+	private void optimizeBody(Stmt.Function function) {
+		final Scope scope = new Scope(function.slotCount, function.reassigned, function.read);
+		scopes.push(scope);
+		final List<Stmt> body = optimizeFrame(function.body);
+		scopes.pop();
+		function.body.clear();
+		function.body.addAll(body);
+		function.slotCount = scope.slotCount;
+	}
+
+	@Override
+	public Stmt visitIfStmt(Stmt.If stmt) {
+		final Expr condition = optimize(stmt.condition);
+		if (condition instanceof Expr.Literal) {
+			if (CompiledRuntime.isTruthy(((Expr.Literal) condition).value)) {
+				return optimize(stmt.thenBranch);
+			}
+			return Objects.isNull(stmt.elseBranch) ? null : optimize(stmt.elseBranch);
+		}
+		final Stmt thenBranch = optimizeBranch(stmt.thenBranch);
+		final Stmt elseBranch = Objects.isNull(stmt.elseBranch) ? null : optimize(stmt.elseBranch);
+		return new Stmt.If(condition, thenBranch, elseBranch);
+	}
+
+	@Override
+	public Stmt visitPrintStmt(Stmt.Print stmt) {
+		final Expr expression = optimize(stmt.expression);
+		return expression == stmt.expression ? stmt : new Stmt.Print(expression);
+	}
+
+	@Override
+	public Stmt visitReturnStmt(Stmt.Return stmt) {
+		if (Objects.isNull(stmt.value)) {
+			return stmt;
+		}
+		final Expr value = optimize(stmt.value);
+		return value == stmt.value ? stmt : withValue(stmt, value);
+	}
+
+	private static Stmt.Return withValue(Stmt.Return stmt, Expr value) {
+		final Stmt.Return optimized = new Stmt.Return(stmt.keyword, value);
+		optimized.tailCall = stmt.tailCall;
+		return optimized;
+	}
+
+	@Override
+	public Stmt visitVarStmt(Stmt.Var stmt) {
+		Expr initializer = Objects.isNull(stmt.initializer) ? null : optimize(stmt.initializer);
+		if (stmt.slot >= 0 && !stmt.captured) {
+			final Scope scope = scopes.peek();
+			if (scope.isConstant(stmt.slot)) {
+				if (Objects.isNull(initializer)) {
+					scope.constants[stmt.slot] = new Expr.Literal(null);
+				}
+				else if (initializer instanceof Expr.Literal) {
+					scope.constants[stmt.slot] = (Expr.Literal) initializer;
+				}
+			}
+			if (!scope.read[stmt.slot] && Objects.nonNull(initializer) && isPure(initializer)) {
+				initializer = null;
+			}
+		}
+		return initializer == stmt.initializer ? stmt : withInitializer(stmt, initializer);
+	}
+
+	private static Stmt.Var withInitializer(Stmt.Var stmt, Expr initializer) {
+		final Stmt.Var optimized = new Stmt.Var(stmt.name, initializer);
+		optimized.slot = stmt.slot;
+		optimized.captured = stmt.captured;
+		return optimized;
+	}
+
+	@Override
+	public Stmt visitWhileStmt(Stmt.While stmt) {
+		return optimizeLoop(stmt, null);
+	}
+
+	/**
+	 * @param before where statements computing loop invariants go, or null if they can not be moved out of the loop
+	 */
+	private Stmt optimizeLoop(Stmt.While stmt, List<Stmt> before) {
+		final boolean enclosingCalls = calls;
+		final Set<String> enclosingSetProperties = setProperties;
+		calls = false;
+		setProperties = new HashSet<>();
+		Expr condition = optimize(stmt.condition);
+		Stmt optimized = null;
+		if (!(condition instanceof Expr.Literal) || CompiledRuntime.isTruthy(((Expr.Literal) condition).value)) {
+			Stmt body = Objects.isNull(stmt.counted) ? optimizeBranch(stmt.body) :
+					optimizeCountedBody((Stmt.Block) stmt.body);
+			if (Objects.nonNull(before)) {
+				condition = new Hoister(before).hoist(condition);
+			}
+			final List<Stmt> entry = new ArrayList<>();
+			if (!scopes.isEmpty() && changesNothing(condition)) {
+				body = new Hoister(entry).hoist(body);
+			}
+			final Stmt.While loop = new Stmt.While(condition, body);
+			loop.enclosingFunction = stmt.enclosingFunction;
+			loop.counted = Objects.isNull(stmt.counted) ? null : CountedLoop.match(loop);
+			optimized = entry.isEmpty() ? loop : enter(loop, entry);
+		}
+		calls |= enclosingCalls;
+		enclosingSetProperties.addAll(setProperties);
+		setProperties = enclosingSetProperties;
+		return optimized;
+	}
+
+	/**
+	 * The body of a counted loop is its statement followed by the step, which is kept as it is so that the loop is
+	 * still counted.
+	 */
+	private Stmt optimizeCountedBody(Stmt.Block body) {
+		final List<Stmt> statements = optimizeAll(List.of(body.statements.get(0)));
+		final List<Stmt> optimized = new ArrayList<>(2);
+		optimized.add(statements.isEmpty() ? new Stmt.Block(new ArrayList<>()) : statements.get(0));
+		optimized.add(body.statements.get(1));
+		final Stmt.Block block = new Stmt.Block(optimized);
+		block.captureCount = body.captureCount;
+		return block;
+	}
+
+	/**
+	 * Computes what was taken out of a loop body once the loop is known to run, so a loop that never does
+	 * evaluates nothing it did not before. The condition is evaluated twice the first time, so it must change
+	 * nothing.
+	 */
+	private Stmt enter(Stmt.While loop, List<Stmt> entry) {
+		final List<Stmt> statements = new ArrayList<>(entry);
+		statements.add(loop);
+		return new Stmt.If(loop.condition, new Stmt.Block(statements), null);
+	}
+
+	/**
+	 * Moves the parts of a loop that give the same value every time out of it. A part is only moved if everything
+	 * the loop evaluates before it, the condition aside, can neither fail nor change anything, so nothing the
+	 * program does is reordered.
+	 */
+	private final class Hoister {
+		private final List<Stmt> before;
+		private boolean pure = true;
+
+		Hoister(List<Stmt> before) {
+			this.before = before;
+		}
+
+		/**
+		 * Takes the parts out of a loop body up to the first statement that is not an expression, a print or a block
+		 * of those. A variable declared in the body changes every time it runs, so the body is not looked at past
+		 * one.
+		 */
+		Stmt hoist(Stmt stmt) {
+			if (!pure) {
+				return stmt;
+			}
+			if (stmt instanceof Stmt.Expression) {
+				final Expr expression = hoist(((Stmt.Expression) stmt).expression);
+				return expression == ((Stmt.Expression) stmt).expression ? stmt : new Stmt.Expression(expression);
+			}
+			if (stmt instanceof Stmt.Print) {
+				final Expr expression = hoist(((Stmt.Print) stmt).expression);
+				pure = false;
+				return expression == ((Stmt.Print) stmt).expression ? stmt : new Stmt.Print(expression);
+			}
+			if (stmt instanceof Stmt.Block && !((Stmt.Block) stmt).newFrame && ((Stmt.Block) stmt).captureCount == 0) {
+				final Stmt.Block block = (Stmt.Block) stmt;
+				final List<Stmt> statements = new ArrayList<>(block.statements.size());
+				boolean changed = false;
+				for (Stmt statement : block.statements) {
+					final Stmt hoisted = hoist(statement);
+					changed |= hoisted != statement;
+					statements.add(hoisted);
+				}
+				return changed ? new Stmt.Block(statements) : stmt;
+			}
+			pure = false;
+			return stmt;
+		}
+
+		Expr hoist(Expr expr) {
+			if (pure && isInvariant(expr) && !isPure(expr) && !(expr instanceof Expr.Variable)) {
+				return temporary(expr, before, expr);
+			}
+			if (expr instanceof Expr.Assign) {
+				// An invariant reads no local that is assigned, and storing to a local can not fail.
+				final Expr.Assign assign = (Expr.Assign) expr;
+				final Expr value = hoist(assign.value);
+				pure &= assign.depth >= 0;
+				return value == assign.value ? expr : withValue(assign, value);
+			}
+			Expr result = expr;
+			if (expr instanceof Expr.Binary) {
+				final Expr.Binary binary = (Expr.Binary) expr;
+				final Expr left = hoist(binary.left);
+				final Expr right = hoist(binary.right);
+				if (left != binary.left || right != binary.right) {
+					result = new Expr.Binary(left, binary.operator, right);
+				}
+			}
+			else if (expr instanceof Expr.Unary) {
+				final Expr.Unary unary = (Expr.Unary) expr;
+				final Expr right = hoist(unary.right);
+				if (right != unary.right) {
+					result = new Expr.Unary(unary.operator, right);
+				}
+			}
+			else if (expr instanceof Expr.Logical) {
+				// The right operand is not always evaluated, so nothing is taken out of it.
+				final Expr.Logical logical = (Expr.Logical) expr;
+				final Expr left = hoist(logical.left);
+				if (left != logical.left) {
+					result = new Expr.Logical(left, logical.operator, logical.right);
+				}
+			}
+			pure &= isPure(result);
+			return result;
+		}
+	}
+
+	/**
+	 * Whether the expression has the same value every time the loop being optimized evaluates it.
+	 */
+	private boolean isInvariant(Expr expr) {
+		if (expr instanceof Expr.Literal || expr instanceof Expr.This) {
+			return true;
+		}
+		if (expr instanceof Expr.Variable) {
+			final Expr.Variable variable = (Expr.Variable) expr;
+			return variable.depth == 0 && scopes.peek().isConstant(variable.slot);
+		}
+		if (expr instanceof Expr.Get) {
+			final Expr.Get get = (Expr.Get) expr;
+			return !calls && !setProperties.contains(get.name.lexme) && !isMethodName(get.name.lexme) &&
+					isInvariant(get.object);
+		}
+		if (expr instanceof Expr.Binary) {
+			return isInvariant(((Expr.Binary) expr).left) && isInvariant(((Expr.Binary) expr).right);
+		}
+		if (expr instanceof Expr.Logical) {
+			return isInvariant(((Expr.Logical) expr).left) && isInvariant(((Expr.Logical) expr).right);
+		}
+		if (expr instanceof Expr.Unary) {
+			return isInvariant(((Expr.Unary) expr).right);
+		}
+		return false;
+	}
+
+	/**
+	 * Gives a value a new slot in the current scope, declared by a statement added to the given list.
+	 *
+	 * @return a read of the new slot
+	 */
+	private Expr.Variable temporary(Expr value, List<Stmt> declarations, Expr at) {
+		final Token name = new Token(TokenType.IDENTIFIER, "$" + temporaries++, null, lineOf(at));
+		final Stmt.Var declaration = new Stmt.Var(name, value);
+		declaration.slot = scopes.peek().slotCount++;
+		declarations.add(declaration);
+		final Expr.Variable variable = new Expr.Variable(name);
+		variable.depth = 0;
+		variable.slot = declaration.slot;
+		return variable;
+	}
+
+	/**
+	 * Evaluates property loads and arithmetic repeated within a run of expression, print, return and variable
+	 * statements once, keeping the value in a temporary. Any other statement ends the run.
+	 */
+	private List<Stmt> reuseValues(List<Stmt> statements) {
+		final ValueNumbering numbering = new ValueNumbering();
+		for (Stmt stmt : statements) {
+			if (stmt instanceof Stmt.Expression) {
+				numbering.number(((Stmt.Expression) stmt).expression);
+			}
+			else if (stmt instanceof Stmt.Print) {
+				numbering.number(((Stmt.Print) stmt).expression);
+			}
+			else if (stmt instanceof Stmt.Return) {
+				if (Objects.nonNull(((Stmt.Return) stmt).value)) {
+					numbering.number(((Stmt.Return) stmt).value);
+				}
+			}
+			else if (stmt instanceof Stmt.Var) {
+				// Each variable has a slot of its own, so declaring one changes no value computed before.
+				if (Objects.nonNull(((Stmt.Var) stmt).initializer)) {
+					numbering.number(((Stmt.Var) stmt).initializer);
+				}
+			}
+			else {
+				numbering.kill();
+			}
+		}
+		if (numbering.reused.isEmpty()) {
+			return statements;
+		}
+		final List<Stmt> rewritten = new ArrayList<>(statements.size());
+		for (Stmt stmt : statements) {
+			rewritten.add(numbering.replace(stmt));
+		}
+		return rewritten;
+	}
+
+	/**
+	 * Numbers the values a run of statements computes, in the order they are evaluated. A value computed again while
+	 * the first is still valid is read from a temporary the first one is stored in. Calls and assignments could
+	 * change any value, so nothing computed before one is reused after it.
+	 */
+	private final class ValueNumbering {
+		private Map<String, Expr> available = new HashMap<>();
+		private final Map<Expr, Expr> reused = new IdentityHashMap<>();
+		private final Map<Expr, Expr.Variable> stored = new IdentityHashMap<>();
+		private int kills = 0;
+
+		Stmt replace(Stmt stmt) {
+			if (stmt instanceof Stmt.Expression) {
+				final Expr expression = replace(((Stmt.Expression) stmt).expression);
+				return expression == ((Stmt.Expression) stmt).expression ? stmt : new Stmt.Expression(expression);
+			}
+			if (stmt instanceof Stmt.Print) {
+				final Expr expression = replace(((Stmt.Print) stmt).expression);
+				return expression == ((Stmt.Print) stmt).expression ? stmt : new Stmt.Print(expression);
+			}
+			if (stmt instanceof Stmt.Return && Objects.nonNull(((Stmt.Return) stmt).value)) {
+				final Expr value = replace(((Stmt.Return) stmt).value);
+				return value == ((Stmt.Return) stmt).value ? stmt : withValue((Stmt.Return) stmt, value);
+			}
+			if (stmt instanceof Stmt.Var && Objects.nonNull(((Stmt.Var) stmt).initializer)) {
+				final Expr initializer = replace(((Stmt.Var) stmt).initializer);
+				return initializer == ((Stmt.Var) stmt).initializer ? stmt :
+						withInitializer((Stmt.Var) stmt, initializer);
+			}
+			return stmt;
+		}
+
+		void number(Expr expr) {
+			final String key = key(expr);
+			if (Objects.nonNull(key) && available.containsKey(key)) {
+				reused.put(expr, available.get(key));
+				return;
+			}
+			if (expr instanceof Expr.Binary) {
+				number(((Expr.Binary) expr).left);
+				number(((Expr.Binary) expr).right);
+			}
+			else if (expr instanceof Expr.Unary) {
+				number(((Expr.Unary) expr).right);
+			}
+			else if (expr instanceof Expr.Get) {
+				number(((Expr.Get) expr).object);
+			}
+			else if (expr instanceof Expr.Logical) {
+				number(((Expr.Logical) expr).left);
+				// Values in the right operand may not be computed, so they are forgotten after it.
+				final Map<String, Expr> before = new HashMap<>(available);
+				final int killsBefore = kills;
+				number(((Expr.Logical) expr).right);
+				available = kills == killsBefore ? before : new HashMap<>();
+			}
+			else if (expr instanceof Expr.Call) {
+				number(((Expr.Call) expr).callee);
+				((Expr.Call) expr).arguments.forEach(this::number);
+				kill();
+			}
+			else if (expr instanceof Expr.Set) {
+				number(((Expr.Set) expr).object);
+				number(((Expr.Set) expr).value);
+				kill();
+			}
+			else if (expr instanceof Expr.Assign) {
+				number(((Expr.Assign) expr).value);
+				kill();
+			}
+			if (Objects.nonNull(key) && (expr instanceof Expr.Binary || expr instanceof Expr.Get ||
+					expr instanceof Expr.Unary)) {
+				available.put(key, expr);
+			}
+		}
+
+		void kill() {
+			available.clear();
+			kills++;
+		}
+
+		private Expr replace(Expr expr) {
+			if (reused.containsKey(expr)) {
+				final Expr first = reused.get(expr);
+				if (!stored.containsKey(first)) {
+					final Expr.Variable read = temporary(null, declarations, first);
+					stored.put(first, read);
+				}
+				return stored.get(first);
+			}
+			Expr result = expr;
+			if (expr instanceof Expr.Binary) {
+				final Expr.Binary binary = (Expr.Binary) expr;
+				final Expr left = replace(binary.left);
+				final Expr right = replace(binary.right);
+				if (left != binary.left || right != binary.right) {
+					result = new Expr.Binary(left, binary.operator, right);
+				}
+			}
+			else if (expr instanceof Expr.Unary) {
+				final Expr.Unary unary = (Expr.Unary) expr;
+				final Expr right = replace(unary.right);
+				if (right != unary.right) {
+					result = new Expr.Unary(unary.operator, right);
+				}
+			}
+			else if (expr instanceof Expr.Get) {
+				final Expr.Get get = (Expr.Get) expr;
+				final Expr object = replace(get.object);
+				if (object != get.object) {
+					result = new Expr.Get(object, get.name);
+				}
+			}
+			else if (expr instanceof Expr.Logical) {
+				final Expr.Logical logical = (Expr.Logical) expr;
+				final Expr left = replace(logical.left);
+				final Expr right = replace(logical.right);
+				if (left != logical.left || right != logical.right) {
+					result = new Expr.Logical(left, logical.operator, right);
+				}
+			}
+			else if (expr instanceof Expr.Call) {
+				final Expr.Call call = (Expr.Call) expr;
+				final Expr callee = replace(call.callee);
+				boolean changed = callee != call.callee;
+				final List<Expr> arguments = new ArrayList<>(call.arguments.size());
+				for (Expr argument : call.arguments) {
+					final Expr replaced = replace(argument);
+					changed |= replaced != argument;
+					arguments.add(replaced);
+				}
+				if (changed) {
+					result = new Expr.Call(callee, call.paren, arguments);
+				}
+			}
+			else if (expr instanceof Expr.Set) {
+				final Expr.Set set = (Expr.Set) expr;
+				final Expr object = replace(set.object);
+				final Expr value = replace(set.value);
+				if (object != set.object || value != set.value) {
+					result = new Expr.Set(object, set.name, value);
+				}
+			}
+			else if (expr instanceof Expr.Assign) {
+				final Expr.Assign assign = (Expr.Assign) expr;
+				final Expr value = replace(assign.value);
+				if (value != assign.value) {
+					result = withValue(assign, value);
+				}
+			}
+			if (stored.containsKey(expr)) {
+				return store(stored.get(expr), result);
+			}
+			if (reused.containsValue(expr)) {
+				final Expr.Variable read = temporary(null, declarations, expr);
+				stored.put(expr, read);
+				return store(read, result);
+			}
+			return result;
+		}
+
+		private Expr store(Expr.Variable temporary, Expr value) {
+			final Expr.Assign assign = new Expr.Assign(temporary.name, value);
+			assign.depth = temporary.depth;
+			assign.slot = temporary.slot;
+			return assign;
+		}
+	}
+
+	/**
+	 * @return a description of the value the expression computes, the same for expressions computing the same
+	 * value in one run of statements, or null if it is not one that can be reused. Literals, globals and locals
+	 * are tagged with their kind so a global cannot share a key with a literal spelled like its name.
+	 */
+	private String key(Expr expr) {
+		if (expr instanceof Expr.Literal) {
+			final Object value = ((Expr.Literal) expr).value;
+			return value instanceof String ? "lit:\"" + value + "\"" : "lit:" + value;
+		}
+		if (expr instanceof Expr.This) {
+			return "this";
+		}
+		if (expr instanceof Expr.Variable) {
+			final Expr.Variable variable = (Expr.Variable) expr;
+			return variable.depth < 0 ? "global:" + variable.name.lexme : "local:" + variable.depth + ":" + variable.slot;
+		}
+		if (expr instanceof Expr.Get) {
+			final Expr.Get get = (Expr.Get) expr;
+			final String object = key(get.object);
+			if (Objects.isNull(object) || isMethodName(get.name.lexme)) {
+				return null;
+			}
+			return "(" + object + "." + get.name.lexme + ")";
+		}
+		if (expr instanceof Expr.Binary) {
+			final Expr.Binary binary = (Expr.Binary) expr;
+			final String left = key(binary.left);
+			final String right = key(binary.right);
+			if (Objects.isNull(left) || Objects.isNull(right)) {
+				return null;
+			}
+			return "(" + left + " " + binary.operator.lexme + " " + right + ")";
+		}
+		if (expr instanceof Expr.Unary) {
+			final String right = key(((Expr.Unary) expr).right);
+			return Objects.isNull(right) ? null : "(" + ((Expr.Unary) expr).operator.lexme + right + ")";
+		}
+		return null;
+	}
+
+	private static int lineOf(Expr expr) {
+		if (expr instanceof Expr.Binary) {
+			return ((Expr.Binary) expr).operator.line;
+		}
+		if (expr instanceof Expr.Unary) {
+			return ((Expr.Unary) expr).operator.line;
+		}
+		if (expr instanceof Expr.Logical) {
+			return ((Expr.Logical) expr).operator.line;
+		}
+		if (expr instanceof Expr.Get) {
+			return ((Expr.Get) expr).name.line;
+		}
+		if (expr instanceof Expr.Variable) {
+			return ((Expr.Variable) expr).name.line;
+		}
+		if (expr instanceof Expr.This) {
+			return ((Expr.This) expr).keyword.line;
+		}
+		return 0;
+	}
+
+	@Override
+	public Expr visitAssignExpr(Expr.Assign expr) {
+		final Expr value = optimize(expr.value);
+		if (expr.depth == 0) {
+			final Scope scope = scopes.peek();
+			if (expr.slot < scope.read.length && !scope.read[expr.slot]) {
+				return value;
+			}
+		}
+		return value == expr.value ? expr : withValue(expr, value);
+	}
+
+	private static Expr.Assign withValue(Expr.Assign expr, Expr value) {
+		final Expr.Assign optimized = new Expr.Assign(expr.name, value);
+		optimized.depth = expr.depth;
+		optimized.slot = expr.slot;
+		return optimized;
+	}
+
+	@Override
+	public Expr visitBinaryExpr(Expr.Binary expr) {
+		final Expr left = optimize(expr.left);
+		final Expr right = optimize(expr.right);
+		if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+			final Object value = fold(expr.operator.tokenType, ((Expr.Literal) left).value, ((Expr.Literal) right).value);
+			if (value != NOT_FOLDED) {
+				return new Expr.Literal(value);
+			}
+		}
+		if (left == expr.left && right == expr.right) {
+			return expr;
+		}
+		return new Expr.Binary(left, expr.operator, right);
+	}
+
+	/**
+	 * @return the value the operator gives, or NOT_FOLDED if it would be a runtime error
+	 */
+	private static Object fold(TokenType operator, Object left, Object right) {
+		if (operator == TokenType.EQUAL_EQUAL) {
+			return CompiledRuntime.isEqual(left, right);
+		}
+		if (operator == TokenType.BANG_EQUAL) {
+			return !CompiledRuntime.isEqual(left, right);
+		}
+		if (operator == TokenType.PLUS && left instanceof String && right instanceof String) {
+			return (String) left + (String) right;
+		}
+		if (!(left instanceof Double && right instanceof Double)) {
+			return NOT_FOLDED;
+		}
+		final double a = (double) left;
+		final double b = (double) right;
+		switch (operator) {
+		case PLUS:
+			return a + b;
+		case MINUS:
+			return a - b;
+		case STAR:
+			return a * b;
+		case SLASH:
+			return b == 0.0 ? NOT_FOLDED : a / b;
+		case GREATER:
+			return a > b;
+		case GREATER_EQUAL:
+			return a >= b;
+		case LESS:
+			return a < b;
+		case LESS_EQUAL:
+			return a <= b;
+		}
+		return NOT_FOLDED;
+	}
+
+	@Override
+	public Expr visitCallExpr(Expr.Call expr) {
+		calls = true;
+		final Expr callee = optimize(expr.callee);
+		boolean changed = callee != expr.callee;
+		final List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+		for (Expr argument : expr.arguments) {
+			final Expr optimized = optimize(argument);
+			changed |= optimized != argument;
+			arguments.add(optimized);
+		}
+		return changed ? new Expr.Call(callee, expr.paren, arguments) : expr;
+	}
+
+	@Override
+	public Expr visitGetExpr(Expr.Get expr) {
+		final Expr object = optimize(expr.object);
+		return object == expr.object ? expr : new Expr.Get(object, expr.name);
+	}
+
+	@Override
+	public Expr visitGroupingExpr(Expr.Grouping expr) {
+		return optimize(expr.expression);
+	}
+
+	@Override
+	public Expr visitLiteralExpr(Expr.Literal expr) {
+		return expr;
+	}
+
+	@Override
+	public Expr visitLogicalExpr(Expr.Logical expr) {
+		final Expr left = optimize(expr.left);
+		final Expr right = optimize(expr.right);
+		if (left instanceof Expr.Literal) {
+			final boolean truthy = CompiledRuntime.isTruthy(((Expr.Literal) left).value);
+			if (expr.operator.tokenType == TokenType.OR ? truthy : !truthy) {
+				return left;
+			}
+			return right;
+		}
+		if (left == expr.left && right == expr.right) {
+			return expr;
+		}
+		return new Expr.Logical(left, expr.operator, right);
+	}
+
+	@Override
+	public Expr visitSetExpr(Expr.Set expr) {
+		setProperties.add(expr.name.lexme);
+		final Expr object = optimize(expr.object);
+		final Expr value = optimize(expr.value);
+		if (object == expr.object && value == expr.value) {
+			return expr;
+		}
+		return new Expr.Set(object, expr.name, value);
+	}
+
+	@Override
+	public Expr visitSuperExpr(Expr.Super expr) {
+		return expr;
+	}
+
+	@Override
+	public Expr visitThisExpr(Expr.This expr) {
+		return expr;
+	}
+
+	@Override
+	public Expr visitVariableExpr(Expr.Variable expr) {
+		if (expr.depth == 0) {
+			final Scope scope = scopes.peek();
+			if (expr.slot < scope.constants.length && Objects.nonNull(scope.constants[expr.slot])) {
+				return scope.constants[expr.slot];
+			}
+		}
+		return expr;
+	}
+
+	@Override
+	public Expr visitUnaryExpr(Expr.Unary expr) {
+		final Expr right = optimize(expr.right);
+		if (right instanceof Expr.Literal) {
+			final Object value = ((Expr.Literal) right).value;
+			if (expr.operator.tokenType == TokenType.BANG) {
+				return new Expr.Literal(!CompiledRuntime.isTruthy(value));
+			}
+			if (value instanceof Double) {
+				return new Expr.Literal(-(double) value);
+			}
+		}
+		return right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+	}
+
+	/**
+	 * Whether evaluating the expression changes nothing, though unlike a pure one it may fail.
+	 */
+	private static boolean changesNothing(Expr expr) {
+		if (expr instanceof Expr.Binary) {
+			return changesNothing(((Expr.Binary) expr).left) && changesNothing(((Expr.Binary) expr).right);
+		}
+		if (expr instanceof Expr.Logical) {
+			return changesNothing(((Expr.Logical) expr).left) && changesNothing(((Expr.Logical) expr).right);
+		}
+		if (expr instanceof Expr.Unary) {
+			return changesNothing(((Expr.Unary) expr).right);
+		}
+		if (expr instanceof Expr.Get) {
+			return changesNothing(((Expr.Get) expr).object);
+		}
+		return expr instanceof Expr.Literal || expr instanceof Expr.This || expr instanceof Expr.Variable;
+	}
+
+	/**
+	 * Whether evaluating the expression can neither fail nor change anything. Globals are not, as reading one
+	 * that is undefined or unassigned is an error.
+	 */
+	private static boolean isPure(Expr expr) {
+		if (expr instanceof Expr.Literal || expr instanceof Expr.This) {
+			return true;
+		}
+		if (expr instanceof Expr.Variable) {
+			return ((Expr.Variable) expr).depth >= 0;
+		}
+		if (expr instanceof Expr.Logical) {
+			return isPure(((Expr.Logical) expr).left) && isPure(((Expr.Logical) expr).right);
+		}
+		if (expr instanceof Expr.Unary) {
+			return ((Expr.Unary) expr).operator.tokenType == TokenType.BANG && isPure(((Expr.Unary) expr).right);
+		}
+		if (expr instanceof Expr.Binary) {
+			final Expr.Binary binary = (Expr.Binary) expr;
+			return (binary.operator.tokenType == TokenType.EQUAL_EQUAL ||
+					binary.operator.tokenType == TokenType.BANG_EQUAL) &&
+					isPure(binary.left) && isPure(binary.right);
+		}
+		return false;
+	}
+}
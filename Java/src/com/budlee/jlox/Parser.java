@@ -5,11 +5,11 @@ import java.util.List;
 import java.util.Objects;
 
 public class Parser {
-	private final List<Token> tokens;
+	private final TokenStream tokens;
 	private int current = 0;
 
 
-	public Parser(List<Token> tokens) {
+	Parser(TokenStream tokens) {
 		this.tokens = tokens;
 	}
 
@@ -21,6 +21,20 @@ public class Parser {
 		return statements;
 	}
 
+	boolean hasNext() {
+		return !isAtEnd();
+	}
+
+	/**
+	 * Parses the next top-level declaration, first releasing the tokens of those already parsed.
+	 *
+	 * @return the declaration, or null if it could not be parsed
+	 */
+	Stmt next() {
+		tokens.release(current);
+		return decleration();
+	}
+
 	private Expr expression() {
 		return assignment();
 	}
@@ -49,23 +63,23 @@ public class Parser {
 		//Has a superclass?
 		Expr.Variable superclass =null;
 		if(match(TokenType.LESS)){
-			consume(TokenType.IDENTIFIER, "Expect superclass name.");
+			expect(TokenType.IDENTIFIER, "Expect superclass name.");
 			superclass = new Expr.Variable(previous());
 		}
-		consume(TokenType.LEFT_BRACE, "Expect '{' before class body");
+		expect(TokenType.LEFT_BRACE, "Expect '{' before class body");
 
 		List<Stmt.Function> classMethods = new ArrayList<>();
 		while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
 			classMethods.add(function("method"));
 		}
 
-		consume(TokenType.RIGHT_BRACE, "Expect '}' after class body");
+		expect(TokenType.RIGHT_BRACE, "Expect '}' after class body");
 		return new Stmt.Class(name, superclass,classMethods);
 	}
 
 	private Stmt.Function function(String kind) {
 		Token name = consume(TokenType.IDENTIFIER, String.format("Expect %s name.", kind));
-		consume(TokenType.LEFT_PAREN, String.format("Expect '(' after %s name.", kind));
+		expect(TokenType.LEFT_PAREN, String.format("Expect '(' after %s name.", kind));
 		List<Token> parameters = new ArrayList<>();
 		if (!check(TokenType.RIGHT_PAREN)) {
 			do {
@@ -76,8 +90,8 @@ public class Parser {
 			}
 			while (match(TokenType.COMMA));
 		}
-		consume(TokenType.RIGHT_PAREN, String.format("Expect ')' after %s parameters.", kind));
-		consume(TokenType.LEFT_BRACE, String.format("Expect '{' before %s body.", kind));
+		expect(TokenType.RIGHT_PAREN, String.format("Expect ')' after %s parameters.", kind));
+		expect(TokenType.LEFT_BRACE, String.format("Expect '{' before %s body.", kind));
 		final List<Stmt> body = block();
 
 		return new Stmt.Function(name, parameters, body);
@@ -89,7 +103,7 @@ public class Parser {
 		if (match(TokenType.EQUAL)) {
 			initializer = expression();
 		}
-		consume(TokenType.SEMICOLON, "Expect ';' after variable decleration.");
+		expect(TokenType.SEMICOLON, "Expect ';' after variable decleration.");
 		return new Stmt.Var(name, initializer);
 	}
 
@@ -116,7 +130,7 @@ public class Parser {
 	}
 
 	private Stmt forStatement() {
-		consume(TokenType.LEFT_PAREN, "Expect '(' after for.");
+		expect(TokenType.LEFT_PAREN, "Expect '(' after for.");
 		Stmt initializer;
 		if (match(TokenType.SEMICOLON)) {
 			initializer = null;
@@ -132,13 +146,13 @@ public class Parser {
 		if (!check(TokenType.SEMICOLON)) {
 			condition = expression();
 		}
-		consume(TokenType.SEMICOLON, "Expect ';' after loop condition.");
+		expect(TokenType.SEMICOLON, "Expect ';' after loop condition.");
 
 		Expr increment = null;
 		if (!check(TokenType.RIGHT_PAREN)) {
 			increment = expression();
 		}
-		consume(TokenType.RIGHT_PAREN, "Expect ')' after for clauses.");
+		expect(TokenType.RIGHT_PAREN, "Expect ')' after for clauses.");
 		Stmt body = statement();
 
 		if (Objects.nonNull(increment)) {
@@ -160,18 +174,18 @@ public class Parser {
 	}
 
 	private Stmt whileStatement() {
-		consume(TokenType.LEFT_PAREN, "Expect '(' after 'while'.");
+		expect(TokenType.LEFT_PAREN, "Expect '(' after 'while'.");
 		Expr condition = expression();
-		consume(TokenType.RIGHT_PAREN, "Expect ')' after while condition.");
+		expect(TokenType.RIGHT_PAREN, "Expect ')' after while condition.");
 		Stmt body = statement();
 
 		return new Stmt.While(condition, body);
 	}
 
 	private Stmt ifStatement() {
-		consume(TokenType.LEFT_PAREN, "Expect '(' after 'if'.");
+		expect(TokenType.LEFT_PAREN, "Expect '(' after 'if'.");
 		Expr condition = expression();
-		consume(TokenType.RIGHT_PAREN, "Expect ')' after if condition.");
+		expect(TokenType.RIGHT_PAREN, "Expect ')' after if condition.");
 		Stmt thenBranch = statement();
 		Stmt elseBranch = null;
 		if (match(TokenType.ELSE)) {
@@ -182,7 +196,7 @@ public class Parser {
 
 	private Stmt printStatement() {
 		Expr value = expression();
-		consume(TokenType.SEMICOLON, "Expect ';' after value.");
+		expect(TokenType.SEMICOLON, "Expect ';' after value.");
 		return new Stmt.Print(value);
 	}
 
@@ -192,13 +206,13 @@ public class Parser {
 		if (!check(TokenType.SEMICOLON)) {
 			value = expression();
 		}
-		consume(TokenType.SEMICOLON, "Expect ';' after return value");
+		expect(TokenType.SEMICOLON, "Expect ';' after return value");
 		return new Stmt.Return(keyword, value);
 	}
 
 	private Stmt expressionStatement() {
 		Expr expr = expression();
-		consume(TokenType.SEMICOLON, "Expect ';' after expression.");
+		expect(TokenType.SEMICOLON, "Expect ';' after expression.");
 		return new Stmt.Expression(expr);
 	}
 
@@ -208,7 +222,7 @@ public class Parser {
 		while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
 			statements.add(decleration());
 		}
-		consume(TokenType.RIGHT_BRACE, "Expect '}' after block");
+		expect(TokenType.RIGHT_BRACE, "Expect '}' after block");
 		return statements;
 	}
 
@@ -347,7 +361,7 @@ public class Parser {
 		}
 		if (match(TokenType.SUPER)){
 			Token keyword = previous();
-			consume(TokenType.DOT, "Expect '.' after 'super'.");
+			expect(TokenType.DOT, "Expect '.' after 'super'.");
 			final Token method = consume(TokenType.IDENTIFIER, "Expect superclass method name");
 			return new Expr.Super(keyword, method);
 		}
@@ -359,7 +373,7 @@ public class Parser {
 		}
 		if (match(TokenType.LEFT_PAREN)) {
 			Expr expr = expression();
-			consume(TokenType.RIGHT_PAREN, "Expect ')' after expression");
+			expect(TokenType.RIGHT_PAREN, "Expect ')' after expression");
 			return new Expr.Grouping(expr);
 		}
 		throw error(peek(), "Expect expression");
@@ -372,10 +386,20 @@ public class Parser {
 		throw error(peek(), message);
 	}
 
+	/**
+	 * Like consume, for the tokens the tree does not keep.
+	 */
+	private void expect(TokenType tokenType, String message) {
+		if (!check(tokenType)) {
+			throw error(peek(), message);
+		}
+		current++;
+	}
+
 	private boolean match(TokenType... types) {
 		for (TokenType tokenType : types) {
 			if (check(tokenType)) {
-				advance();
+				current++;
 				return true;
 			}
 		}
@@ -386,7 +410,7 @@ public class Parser {
 		if (isAtEnd()) {
 			return false;
 		}
-		return peek().tokenType == tokenType;
+		return tokens.type(current) == tokenType;
 	}
 
 	private Token advance() {
@@ -398,15 +422,15 @@ public class Parser {
 
 
 	private boolean isAtEnd() {
-		return peek().tokenType == TokenType.EOF;
+		return tokens.type(current) == TokenType.EOF;
 	}
 
 	private Token peek() {
-		return tokens.get(current);
+		return tokens.token(current);
 	}
 
 	private Token previous() {
-		return tokens.get(current - 1);
+		return tokens.token(current - 1);
 	}
 
 	private ParseError error(Token token, String message) {
@@ -422,11 +446,11 @@ public class Parser {
 	private void synchronize() {
 		advance();
 		while (!isAtEnd()) {
-			if (previous().tokenType == TokenType.SEMICOLON) {
+			if (tokens.type(current - 1) == TokenType.SEMICOLON) {
 				return;
 			}
 		}
-		switch (peek().tokenType) {
+		switch (tokens.type(current)) {
 		case CLASS:
 		case FOR:
 		case FUN:
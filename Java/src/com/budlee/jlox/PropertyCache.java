@@ -0,0 +1,91 @@
+package com.budlee.jlox;
+
+import java.util.Objects;
+
+/**
+ * The inline cache of a property get or set site. For the last few instance shapes seen at the site it remembers
+ * the field slot or the method the name resolved to, so a hit is a reference compare and an array load.
+ *
+ * Shapes belong to a single class and a class's methods never change, so entries never go stale. Declaring a class
+ * again creates a new class with new shapes, which just misses. A site that sees more shapes than the cache holds
+ * looks the property up every time.
+ */
+final class PropertyCache {
+	private static final int ENTRIES = 4;
+
+	private final Shape[] shapes = new Shape[ENTRIES];
+	private final Shape[] targets = new Shape[ENTRIES];
+	private final int[] slots = new int[ENTRIES];
+	private final LoxFunction[] methods = new LoxFunction[ENTRIES];
+	private int count;
+
+	Object get(LoxInstance instance, Token name) {
+		final Shape shape = instance.shape;
+		for (int i = 0; i < count; i++) {
+			if (shapes[i] == shape) {
+				final LoxFunction method = methods[i];
+				return Objects.isNull(method) ? instance.fields[slots[i]] : method.bind(instance);
+			}
+		}
+		final int slot = shape.slotOf(name.lexme);
+		if (slot >= 0) {
+			add(shape, shape, slot, null);
+			return instance.fields[slot];
+		}
+		final LoxFunction method = instance.klass.findMethod(name.lexme);
+		if (Objects.nonNull(method)) {
+			add(shape, shape, -1, method);
+			return method.bind(instance);
+		}
+		return instance.get(name);
+	}
+
+	/**
+	 * The method a call site invokes on the instance, so it can be called without binding it. Null when the name
+	 * is a field, or nothing, and the site has to get the property after all.
+	 */
+	LoxFunction method(LoxInstance instance, Token name) {
+		final Shape shape = instance.shape;
+		for (int i = 0; i < count; i++) {
+			if (shapes[i] == shape) {
+				return methods[i];
+			}
+		}
+		final int slot = shape.slotOf(name.lexme);
+		if (slot >= 0) {
+			add(shape, shape, slot, null);
+			return null;
+		}
+		final LoxFunction method = instance.klass.findMethod(name.lexme);
+		if (Objects.nonNull(method)) {
+			add(shape, shape, -1, method);
+		}
+		return method;
+	}
+
+	/**
+	 * A set that adds a field remembers the shape the instance moves to as well as the slot.
+	 */
+	void set(LoxInstance instance, Token name, Object value) {
+		final Shape shape = instance.shape;
+		for (int i = 0; i < count; i++) {
+			if (shapes[i] == shape) {
+				instance.store(targets[i], slots[i], value);
+				return;
+			}
+		}
+		instance.set(name, value);
+		add(shape, instance.shape, instance.shape.slotOf(name.lexme), null);
+	}
+
+	private void add(Shape shape, Shape target, int slot, LoxFunction method) {
+		if (count == ENTRIES) {
+			return;
+		}
+		shapes[count] = shape;
+		targets[count] = target;
+		slots[count] = slot;
+		methods[count] = method;
+		count++;
+	}
+}
@@ -21,9 +21,9 @@ public class ReplInterpreter extends Interpreter {
 	}
 
 	@Override
-	public Void visitExpressionStmt(Stmt.Expression stmt) {
+	public Object visitExpressionStmt(Stmt.Expression stmt) {
 		System.out.println(stmt.expression.accept(this));
-		return null;
+		return NORMAL;
 	}
 
 
@@ -1,16 +1,29 @@
 package com.budlee.jlox;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.Stack;
+import java.util.function.Predicate;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-	private final Interpreter interpreter;
-	private Stack<Map<String, Boolean>> scopes = new Stack<>();
+	private Stack<Scope> scopes = new Stack<>();
+	private Frame frame = null;
 	private FunctionType currentFunction = FunctionType.NONE;
+	private Stmt.Function currentDeclaration = null;
 	private ClassType currentClass = ClassType.NONE;
+	private Stmt.Class currentClassDeclaration = null;
+	/**
+	 * The declarations of the locals used by a function other than the one they belong to, found by the first pass.
+	 */
+	private final Set<Object> captured = Collections.newSetFromMap(new IdentityHashMap<>());
+	private boolean analysing;
+	private final GlobalEnvironment globals;
 
 	private enum FunctionType {
 		NONE,
@@ -25,28 +38,146 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 		SUBCLASS
 	}
 
-	public Resolver(Interpreter interpreter) {
-		this.interpreter = interpreter;
+	/**
+	 * The locals of one call of a function, or of one run of a block at the top level, which share one array at
+	 * runtime however deeply the blocks declaring them are nested. A slot whose variable lives elsewhere is null.
+	 */
+	private static class Frame {
+		final List<Variable> slots = new ArrayList<>();
+
+		int add(Variable variable) {
+			slots.add(variable);
+			return slots.size() - 1;
+		}
+	}
+
+	/**
+	 * The names declared in a block, function or class. A scope declaring locals that closures capture gets an
+	 * Environment of its own at runtime holding just those, which is what the closures keep.
+	 */
+	private static class Scope {
+		final Map<String, Variable> variables = new HashMap<>();
+		final boolean capturing;
+		int captureCount;
+
+		Scope(boolean capturing) {
+			this.capturing = capturing;
+		}
+	}
+
+	/**
+	 * A local declared in a scope. The slot is its index in the frame, or in the scope's own Environment if it
+	 * is captured.
+	 */
+	private static class Variable {
+		final Object declaration;
+		final Scope scope;
+		final Frame frame;
+		boolean captured;
+		int slot;
+		boolean defined;
+		int assignments;
+		boolean read;
+
+		Variable(Object declaration, Scope scope, Frame frame) {
+			this.declaration = declaration;
+			this.scope = scope;
+			this.frame = frame;
+		}
+	}
+
+	/**
+	 * @param globals where globals the program uses are given their indices
+	 */
+	Resolver(GlobalEnvironment globals) {
+		this.globals = globals;
+	}
+
+	/**
+	 * Resolves the program twice. Where a local lives depends on whether a closure captures it, which is only
+	 * known once the whole scope has been seen, so the first pass just finds the captured locals.
+	 */
+	void resolve(List<Stmt> statements) {
+		analysing = true;
+		resolveAll(statements);
+		analysing = false;
+		resolveAll(statements);
 	}
 
 	@Override
 	public Void visitAssignExpr(Expr.Assign expr) {
 		resolve(expr.value);
-		resolveLocal(expr, expr.name);
+		final Variable variable = resolveLocal(expr.name.lexme);
+		expr.depth = depthOf(variable);
+		expr.slot = slotOf(variable, expr.name);
+		if (Objects.nonNull(variable)) {
+			variable.assignments++;
+		}
 		return null;
 	}
 
 	@Override
 	public Void visitBlockStmt(Stmt.Block stmt) {
-		beginScope();
-		resolve(stmt.statements);
+		stmt.newFrame = false;
+		stmt.captureCount = 0;
+		if (!declaresAny(stmt.statements)) {
+			resolveAll(stmt.statements);
+			return null;
+		}
+		// A block at the top level has no function to keep its locals in, so it has a frame of its own.
+		final boolean newFrame = Objects.isNull(frame);
+		if (newFrame) {
+			frame = new Frame();
+		}
+		final Scope scope = beginScope(capturesAny(stmt.statements));
+		resolveAll(stmt.statements);
 		endScope();
+		stmt.captureCount = scope.captureCount;
+		if (newFrame) {
+			stmt.newFrame = true;
+			stmt.slotCount = frame.slots.size();
+			stmt.reassigned = slots(frame, variable -> variable.assignments > 0);
+			stmt.read = slots(frame, variable -> variable.read);
+			frame = null;
+		}
 		return null;
 	}
 
+	/**
+	 * A block that declares nothing has no scope, here or at runtime.
+	 */
+	private static boolean declaresAny(List<Stmt> statements) {
+		for (Stmt statement : statements) {
+			if (statement instanceof Stmt.Var || statement instanceof Stmt.Function ||
+					statement instanceof Stmt.Class) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether a closure captures anything the statements declare, as a scope needs to know before it is resolved.
+	 */
+	private boolean capturesAny(List<Stmt> statements) {
+		for (Stmt statement : statements) {
+			if ((statement instanceof Stmt.Var || statement instanceof Stmt.Function ||
+					statement instanceof Stmt.Class) && isCaptured(statement)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isCaptured(Object declaration) {
+		return !analysing && captured.contains(declaration);
+	}
+
 	@Override
 	public Void visitFunctionStmt(Stmt.Function stmt) {
-		declare(stmt.name);
+		final Variable variable = declare(stmt.name, stmt);
+		stmt.slot = slotOf(variable);
+		stmt.captured = isCaptured(variable);
 		define(stmt.name);
 		resolveFunction(stmt, FunctionType.FUNCTION);
 		return null;
@@ -55,17 +186,25 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	@Override
 	public Void visitVariableExpr(Expr.Variable expr) {
 		if (!scopes.isEmpty() &&
-				scopes.peek().get(expr.name.lexme) == Boolean.FALSE) {
-			Lox.error(expr.name,
+				scopes.peek().variables.containsKey(expr.name.lexme) &&
+				!scopes.peek().variables.get(expr.name.lexme).defined) {
+			error(expr.name,
 					"Can't read local variab;e in its own initializer");
 		}
-		resolveLocal(expr, expr.name);
+		final Variable variable = resolveLocal(expr.name.lexme);
+		expr.depth = depthOf(variable);
+		expr.slot = slotOf(variable, expr.name);
+		if (Objects.nonNull(variable)) {
+			variable.read = true;
+		}
 		return null;
 	}
 
 	@Override
 	public Void visitVarStmt(Stmt.Var stmt) {
-		declare(stmt.name);
+		final Variable variable = declare(stmt.name, stmt);
+		stmt.slot = slotOf(variable);
+		stmt.captured = isCaptured(variable);
 		if (Objects.nonNull(stmt.initializer)) {
 			resolve(stmt.initializer);
 		}
@@ -73,25 +212,55 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 		return null;
 	}
 
-	private void declare(Token name) {
+	/**
+	 * @return the variable, or null if it is a global
+	 */
+	private Variable declare(Token name, Object declaration) {
 		if (scopes.isEmpty()) {
-			return;
+			return null;
+		}
+		if (scopes.peek().variables.containsKey(name.lexme)) {
+			error(name, "Already a variable with this name in this scope.");
+		}
+		return declare(name.lexme, declaration);
+	}
+
+	private Variable declare(String name, Object declaration) {
+		final Scope scope = scopes.peek();
+		final Variable variable = new Variable(declaration, scope, frame);
+		if (isCaptured(declaration)) {
+			variable.captured = true;
+			variable.slot = scope.captureCount++;
 		}
-		final Map<String, Boolean> scope = scopes.peek();
-		if (scope.containsKey(name.lexme)) {
-			Lox.error(name, "Already a variable with this name in this scope.");
+		else {
+			variable.slot = frame.add(variable);
 		}
-		scope.put(name.lexme, false);
+		scope.variables.put(name, variable);
+		return variable;
 	}
 
 	private void define(Token name) {
 		if (scopes.isEmpty()) {
 			return;
 		}
-		scopes.peek().put(name.lexme, true);
+		scopes.peek().variables.get(name.lexme).defined = true;
+	}
+
+	/**
+	 * A parameter, or a method's receiver, is passed in the next slot of the frame. One a closure captures is
+	 * copied from there into the function's own Environment when it is called.
+	 */
+	private void declareParameter(String name, Object declaration, List<Integer> capturedParameters) {
+		final int slot = frame.slots.size();
+		final Variable variable = declare(name, declaration);
+		variable.defined = true;
+		if (variable.captured) {
+			frame.add(null);
+			capturedParameters.add(slot);
+		}
 	}
 
-	void resolve(List<Stmt> statements) {
+	private void resolveAll(List<Stmt> statements) {
 		statements.forEach(this::resolve);
 	}
 
@@ -103,45 +272,151 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 		expr.accept(this);
 	}
 
-	private void resolveLocal(Expr expr, Token name) {
+	private void error(Token token, String message) {
+		if (!analysing) {
+			Lox.error(token, message);
+		}
+	}
+
+	/**
+	 * Finds the local a name refers to, noting that it is captured if it belongs to another function.
+	 *
+	 * @return the variable, or null if it is a global
+	 */
+	private Variable resolveLocal(String name) {
+		final Variable variable = lookUp(name);
+		if (Objects.nonNull(variable) && variable.frame != frame) {
+			captured.add(variable.declaration);
+		}
+		return variable;
+	}
+
+	private Variable lookUp(String name) {
 		for (int i = scopes.size() - 1; i >= 0; i--) {
-			if (scopes.get(i).containsKey(name.lexme)) {
-				interpreter.resolve(expr, scopes.size() - 1 - i);
-				return;
+			final Variable variable = scopes.get(i).variables.get(name);
+			if (Objects.nonNull(variable)) {
+				return variable;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The frame is the innermost Environment, enclosed by those of the scopes in it and around it that capture
+	 * something, innermost first.
+	 *
+	 * @return how many Environments out from the frame the variable is, or -1 if it is a global
+	 */
+	private int depthOf(Variable variable) {
+		if (Objects.isNull(variable)) {
+			return -1;
+		}
+		if (!variable.captured) {
+			return 0;
+		}
+		int depth = 1;
+		for (int i = scopes.size() - 1; scopes.get(i) != variable.scope; i--) {
+			if (scopes.get(i).capturing) {
+				depth++;
 			}
 		}
+		return depth;
+	}
+
+	private static int slotOf(Variable variable) {
+		return Objects.isNull(variable) ? -1 : variable.slot;
+	}
+
+	/**
+	 * @return the slot of the local, or the index of the global with the name
+	 */
+	private int slotOf(Variable variable, Token name) {
+		return Objects.isNull(variable) ? globals.indexOf(name.lexme) : variable.slot;
+	}
+
+	private static boolean isCaptured(Variable variable) {
+		return Objects.nonNull(variable) && variable.captured;
+	}
+
+	/**
+	 * Whether the local with the name is kept in the frame and assigned in one place, counting closures.
+	 */
+	private boolean isOnlyAssignedOnce(String name) {
+		final Variable variable = lookUp(name);
+		return Objects.nonNull(variable) && !variable.captured && variable.assignments == 1;
 	}
 
 	private void resolveFunction(Stmt.Function function, FunctionType type) {
 		FunctionType enclosingFunction = currentFunction;
+		final Stmt.Function enclosingDeclaration = currentDeclaration;
+		final Frame enclosingFrame = frame;
 		currentFunction = type;
-		beginScope();
+		currentDeclaration = function;
+		frame = new Frame();
+		final boolean method = type == FunctionType.METHOD || type == FunctionType.INITIALIZER;
+		boolean capturing = capturesAny(function.body) || method && isCaptured(function.name);
+		for (Token param : function.params) {
+			capturing |= isCaptured(param);
+		}
+		final Scope scope = beginScope(capturing);
+		final List<Integer> capturedParameters = new ArrayList<>();
+		// A method's receiver is passed in the first slot of its own frame, before the parameters.
+		if (method) {
+			function.isMethod = true;
+			declareParameter("this", function.name, capturedParameters);
+		}
 		function.params.forEach(param -> {
-			declare(param);
-			define(param);
+			if (scope.variables.containsKey(param.lexme)) {
+				error(param, "Already a variable with this name in this scope.");
+			}
+			declareParameter(param.lexme, param, capturedParameters);
 		});
-		resolve(function.body);
+		resolveAll(function.body);
 		endScope();
+		function.slotCount = frame.slots.size();
+		function.captureCount = scope.captureCount;
+		function.capturedParameters = capturedParameters.stream().mapToInt(Integer::intValue).toArray();
+		function.reassigned = slots(frame, variable -> variable.assignments > 0);
+		function.read = slots(frame, variable -> variable.read);
 		currentFunction = enclosingFunction;
+		currentDeclaration = enclosingDeclaration;
+		frame = enclosingFrame;
 	}
 
-	private void beginScope() {
-		scopes.push(new HashMap<>());
+	private Scope beginScope(boolean capturing) {
+		return scopes.push(new Scope(capturing));
 	}
 
 	private void endScope() {
 		scopes.pop();
 	}
 
+	/**
+	 * Which slots of a frame hold a variable the test is true of, for the Optimizer.
+	 */
+	private static boolean[] slots(Frame frame, Predicate<Variable> test) {
+		final boolean[] slots = new boolean[frame.slots.size()];
+		for (int slot = 0; slot < slots.length; slot++) {
+			final Variable variable = frame.slots.get(slot);
+			slots[slot] = Objects.nonNull(variable) && test.test(variable);
+		}
+		return slots;
+	}
+
 	@Override
 	public Void visitClassStmt(Stmt.Class stmt) {
 		final ClassType enclosingClass = this.currentClass;
+		final Stmt.Class enclosingClassDeclaration = this.currentClassDeclaration;
 		currentClass = ClassType.CLASS;
-		declare(stmt.name);
+		currentClassDeclaration = stmt;
+		stmt.superExpressions = new ArrayList<>();
+		final Variable variable = declare(stmt.name, stmt);
+		stmt.slot = slotOf(variable);
+		stmt.captured = isCaptured(variable);
 		define(stmt.name);
 		if (Objects.nonNull(stmt.superclass) &&
 				stmt.name.lexme.equals(stmt.superclass.name.lexme)) {
-			Lox.error(stmt.superclass.name,
+			error(stmt.superclass.name,
 					"A class can't inherit from itself.");
 		}
 		if (Objects.nonNull(stmt.superclass)) {
@@ -149,11 +424,14 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 			resolve(stmt.superclass);
 		}
 		if (Objects.nonNull(stmt.superclass)) {
-			beginScope();
-			scopes.peek().put("super", true);
+			// The superclass is kept in an Environment of its own that every method closes over.
+			final Scope scope = beginScope(true);
+			final Variable superclass = new Variable(stmt.superclass, scope, frame);
+			superclass.captured = true;
+			superclass.defined = true;
+			superclass.slot = scope.captureCount++;
+			scope.variables.put("super", superclass);
 		}
-		beginScope();
-		scopes.peek().put("this", true);
 		stmt.methods.forEach(method -> {
 					FunctionType decleration = FunctionType.METHOD;
 					if (method.name.lexme.equals("init")) {
@@ -162,11 +440,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 					resolveFunction(method, decleration);
 				}
 		);
-		endScope();
 		if (Objects.nonNull(stmt.superclass)) {
 			endScope();
 		}
 		this.currentClass = enclosingClass;
+		this.currentClassDeclaration = enclosingClassDeclaration;
 		return null;
 	}
 
@@ -195,12 +473,13 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	@Override
 	public Void visitReturnStmt(Stmt.Return stmt) {
 		if (currentFunction == FunctionType.NONE) {
-			Lox.error(stmt.keyword, "Can't return from top-level code.");
+			error(stmt.keyword, "Can't return from top-level code.");
 		}
 		if (Objects.nonNull(stmt.value)) {
 			if (currentFunction == FunctionType.INITIALIZER) {
-				Lox.error(stmt.keyword, "Can't return a value from an initializer.");
+				error(stmt.keyword, "Can't return a value from an initializer.");
 			}
+			stmt.tailCall = stmt.value instanceof Expr.Call;
 			resolve(stmt.value);
 		}
 		return null;
@@ -208,8 +487,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
 	@Override
 	public Void visitWhileStmt(Stmt.While stmt) {
+		stmt.enclosingFunction = currentDeclaration;
 		resolve(stmt.condition);
 		resolve(stmt.body);
+		final CountedLoop counted = CountedLoop.match(stmt);
+		stmt.counted = Objects.nonNull(counted) && isOnlyAssignedOnce(counted.name) ? counted : null;
 		return null;
 	}
 
@@ -261,21 +543,30 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 	@Override
 	public Void visitSuperExpr(Expr.Super expr) {
 		if (currentClass == ClassType.NONE){
-			Lox.error(expr.keyword, "Can't use 'super' outside of a class");
+			error(expr.keyword, "Can't use 'super' outside of a class");
 		}else if(currentClass != ClassType.SUBCLASS){
-			Lox.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
+			error(expr.keyword, "Can't use 'super' in a class with no superclass.");
+		}else{
+			currentClassDeclaration.superExpressions.add(expr);
 		}
-		resolveLocal(expr, expr.keyword);
+		final Variable superclass = resolveLocal(expr.keyword.lexme);
+		expr.depth = depthOf(superclass);
+		expr.slot = slotOf(superclass);
+		final Variable receiver = resolveLocal("this");
+		expr.receiverDepth = depthOf(receiver);
+		expr.receiverSlot = slotOf(receiver);
 		return null;
 	}
 
 	@Override
 	public Void visitThisExpr(Expr.This expr) {
 		if (currentClass == ClassType.NONE) {
-			Lox.error(expr.keyword,
+			error(expr.keyword,
 					"Can't use 'this' outside of class.");
 		}
-		resolveLocal(expr, expr.keyword);
+		final Variable receiver = resolveLocal(expr.keyword.lexme);
+		expr.depth = depthOf(receiver);
+		expr.slot = slotOf(receiver);
 		return null;
 	}
 
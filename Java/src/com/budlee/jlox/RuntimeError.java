@@ -2,9 +2,20 @@ package com.budlee.jlox;
 
 public class RuntimeError extends RuntimeException {
 	final Token token;
+	final int line;
 	public RuntimeError(Token token, String message) {
 		super(message);
 		this.token = token;
+		this.line = token.line;
+	}
+
+	/**
+	 * Used by the VM, which only keeps the line each instruction came from.
+	 */
+	public RuntimeError(int line, String message) {
+		super(message);
+		this.token = null;
+		this.line = line;
 	}
 
 }
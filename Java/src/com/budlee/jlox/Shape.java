@@ -0,0 +1,56 @@
+package com.budlee.jlox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The layout of an instance's fields, mapping each field name to an index into the instance's field array.
+ *
+ * Every class has a root shape with no fields. Setting a new field moves an instance along a transition to the
+ * shape with that field added, so instances that gained the same fields in the same order share one shape.
+ */
+final class Shape {
+	private final Shape root;
+	private final Map<String, Integer> slots;
+	private final Map<String, Shape> transitions = new HashMap<>();
+	final int size;
+	private int largestSize;
+
+	Shape() {
+		this.root = this;
+		this.slots = new HashMap<>();
+		this.size = 0;
+	}
+
+	private Shape(Shape parent, String name) {
+		this.root = parent.root;
+		this.slots = new HashMap<>(parent.slots);
+		this.slots.put(name, parent.size);
+		this.size = parent.size + 1;
+		root.largestSize = Math.max(root.largestSize, size);
+	}
+
+	/**
+	 * Returns the index of the field, or -1 when instances of this shape do not have it.
+	 */
+	int slotOf(String name) {
+		final Integer slot = slots.get(name);
+		return slot == null ? -1 : slot;
+	}
+
+	Shape withField(String name) {
+		Shape next = transitions.get(name);
+		if (next == null) {
+			next = new Shape(this, name);
+			transitions.put(name, next);
+		}
+		return next;
+	}
+
+	/**
+	 * Field storage for a new instance, big enough for as many fields as any instance of the class has had.
+	 */
+	Object[] newFields() {
+		return new Object[root.largestSize];
+	}
+}
@@ -26,6 +26,11 @@ abstract class Stmt {
 
 
     final List<Stmt> statements;
+    boolean newFrame;
+    int slotCount;
+    int captureCount;
+    boolean[] reassigned;
+    boolean[] read;
     }
     static class Class extends Stmt {
     Class (Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
@@ -43,6 +48,9 @@ abstract class Stmt {
     final Token name;
     final Expr.Variable superclass;
     final List<Stmt.Function> methods;
+    int slot = -1;
+    boolean captured;
+    List<Expr.Super> superExpressions;
     }
     static class Expression extends Stmt {
     Expression (Expr expression) {
@@ -73,6 +81,17 @@ abstract class Stmt {
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+    int slot = -1;
+    boolean captured;
+    int slotCount;
+    int captureCount;
+    int[] capturedParameters;
+    boolean[] reassigned;
+    boolean[] read;
+    boolean isMethod;
+    volatile CompiledFunction compiled;
+    int calls;
+    ClosureCompiler.StmtNode node;
     }
     static class If extends Stmt {
     If (Expr condition, Stmt thenBranch, Stmt elseBranch) {
@@ -118,6 +137,7 @@ abstract class Stmt {
 
     final Token keyword;
     final Expr value;
+    boolean tailCall;
     }
     static class Var extends Stmt {
     Var (Token name, Expr initializer) {
@@ -133,6 +153,8 @@ abstract class Stmt {
 
     final Token name;
     final Expr initializer;
+    int slot = -1;
+    boolean captured;
     }
     static class While extends Stmt {
     While (Expr condition, Stmt body) {
@@ -148,6 +170,9 @@ abstract class Stmt {
 
     final Expr condition;
     final Stmt body;
+    Stmt.Function enclosingFunction;
+    int iterations;
+    CountedLoop counted;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,17 @@
+package com.budlee.jlox;
+
+/**
+ * What a function body completes with when it returns the result of calling a Lox function. The call is still
+ * to be made, and LoxFunction.invoke makes it instead of the body so the stack does not grow with each one.
+ */
+final class TailCall {
+	final LoxFunction function;
+	final LoxInstance receiver;
+	final Object[] arguments;
+
+	TailCall(LoxFunction function, LoxInstance receiver, Object[] arguments) {
+		this.function = function;
+		this.receiver = receiver;
+		this.arguments = arguments;
+	}
+}
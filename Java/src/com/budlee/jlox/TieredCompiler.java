@@ -0,0 +1,47 @@
+package com.budlee.jlox;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.tools.ToolProvider;
+
+/**
+ * Second tier of execution. Everything starts in the Interpreter, which counts calls and loop iterations;
+ * a function that crosses a threshold is compiled to JVM bytecode on a background thread.
+ *
+ * The JvmCompiler swaps the compiled body into the declaration's volatile field once it is loaded, so the
+ * interpreting thread never waits. A function that can not be compiled simply stays in the Interpreter.
+ */
+class TieredCompiler {
+	static final int CALL_THRESHOLD = 1000;
+	static final int LOOP_THRESHOLD = 10000;
+
+	private final JvmCompiler compiler = new JvmCompiler(null);
+	private final Set<Stmt.Function> submitted = Collections.newSetFromMap(new IdentityHashMap<>());
+	private final ExecutorService thread = Executors.newSingleThreadExecutor(runnable -> {
+		final Thread compilerThread = new Thread(runnable, "jlox-tiered-compiler");
+		compilerThread.setDaemon(true);
+		return compilerThread;
+	});
+	private final boolean available;
+
+	TieredCompiler() {
+		available = Objects.nonNull(ToolProvider.getSystemJavaCompiler());
+		if (!available) {
+			System.err.println("Compiling to JVM bytecode needs a JDK, running everything in the interpreter instead.");
+		}
+	}
+
+	/**
+	 * Called from the interpreting thread, only the first request for a function is queued.
+	 */
+	void submit(Stmt.Function declaration) {
+		if (!available || !submitted.add(declaration)) {
+			return;
+		}
+		thread.execute(() -> compiler.compile(declaration));
+	}
+}
@@ -0,0 +1,265 @@
+package com.budlee.jlox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * The tokens the LoxScanner found, kept as parallel arrays of their type, where they are in the source and their
+ * line rather than a Token each. The Parser only asks for a Token when it keeps one in the tree, and that is when
+ * its lexeme and literal are decoded from the source's bytes.
+ *
+ * A token is known by its index from the start of the source. When the Parser reads past the last token scanned
+ * the LoxScanner scans more, and the tokens before a top-level declaration can be released once it is parsed, so
+ * a script can be parsed without ever holding all its tokens.
+ */
+final class TokenStream {
+	private static final TokenType[] TYPES = TokenType.values();
+	/**
+	 * The lexeme of each type of token that is always spelled the same way, so making one copies nothing.
+	 */
+	private static final String[] LEXEMES = new String[TYPES.length];
+
+	static {
+		for (TokenType tokenType : TYPES) {
+			LEXEMES[tokenType.ordinal()] = spelling(tokenType);
+		}
+	}
+
+	private final ByteBuffer source;
+	private final Charset charset;
+	private final LoxScanner scanner;
+	/**
+	 * The index of the first token held, as those before it were released.
+	 */
+	private int offset;
+	private int[] types = new int[64];
+	private int[] starts = new int[64];
+	private int[] lengths = new int[64];
+	private int[] lines = new int[64];
+	private int size;
+	/**
+	 * The Tokens made so far, so asking for one twice gives the same Token.
+	 */
+	private Token[] tokens = new Token[64];
+	/**
+	 * Identifier names, open addressed by their hash, so each name is one String however often it is used.
+	 */
+	private String[] names = new String[64];
+	private int nameCount;
+
+	TokenStream(ByteBuffer source, Charset charset, LoxScanner scanner) {
+		this.source = source;
+		this.charset = charset;
+		this.scanner = scanner;
+	}
+
+	void add(TokenType tokenType, int start, int length, int line) {
+		if (size == types.length) {
+			final int capacity = size * 2;
+			types = Arrays.copyOf(types, capacity);
+			starts = Arrays.copyOf(starts, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			lines = Arrays.copyOf(lines, capacity);
+			tokens = Arrays.copyOf(tokens, capacity);
+		}
+		types[size] = tokenType.ordinal();
+		starts[size] = start;
+		lengths[size] = length;
+		lines[size] = line;
+		size++;
+	}
+
+	/**
+	 * @return the index after the last token scanned
+	 */
+	int end() {
+		return offset + size;
+	}
+
+	TokenType type(int index) {
+		final int i = held(index);
+		return TYPES[types[i]];
+	}
+
+	Token token(int index) {
+		final int i = held(index);
+		Token token = tokens[i];
+		if (Objects.isNull(token)) {
+			token = new Token(TYPES[types[i]], lexeme(i), literal(i), lines[i]);
+			tokens[i] = token;
+		}
+		return token;
+	}
+
+	/**
+	 * Drops the tokens before the index, which the Parser will not look at again.
+	 */
+	void release(int index) {
+		final int released = index - offset;
+		final int kept = size - released;
+		System.arraycopy(types, released, types, 0, kept);
+		System.arraycopy(starts, released, starts, 0, kept);
+		System.arraycopy(lengths, released, lengths, 0, kept);
+		System.arraycopy(lines, released, lines, 0, kept);
+		System.arraycopy(tokens, released, tokens, 0, kept);
+		Arrays.fill(tokens, kept, size, null);
+		offset = index;
+		size = kept;
+	}
+
+	/**
+	 * @return where the token with the index is held, once it has been scanned
+	 */
+	private int held(int index) {
+		while (index >= offset + size && scanner.scanMore()) {
+		}
+		return index - offset;
+	}
+
+	/**
+	 * @return the tokens held, made as they are asked for
+	 */
+	List<Token> asList() {
+		return new AbstractList<>() {
+			@Override
+			public Token get(int index) {
+				return token(offset + index);
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private static String spelling(TokenType tokenType) {
+		switch (tokenType) {
+		case LEFT_PAREN: return "(";
+		case RIGHT_PAREN: return ")";
+		case LEFT_BRACE: return "{";
+		case RIGHT_BRACE: return "}";
+		case COMMA: return ",";
+		case DOT: return ".";
+		case MINUS: return "-";
+		case PLUS: return "+";
+		case SEMICOLON: return ";";
+		case STAR: return "*";
+		case SLASH: return "/";
+		case BANG: return "!";
+		case BANG_EQUAL: return "!=";
+		case EQUAL: return "=";
+		case EQUAL_EQUAL: return "==";
+		case GREATER: return ">";
+		case GREATER_EQUAL: return ">=";
+		case LESS: return "<";
+		case LESS_EQUAL: return "<=";
+		case EOF: return "";
+		case IDENTIFIER:
+		case STRING:
+		case NUMBER:
+		case DASH:
+			return null;
+		default:
+			return tokenType.name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+	private String lexeme(int i) {
+		final String lexeme = LEXEMES[types[i]];
+		if (Objects.nonNull(lexeme)) {
+			return lexeme;
+		}
+		if (types[i] == TokenType.IDENTIFIER.ordinal()) {
+			return name(starts[i], lengths[i]);
+		}
+		return text(starts[i], starts[i] + lengths[i]);
+	}
+
+	private Object literal(int i) {
+		final int start = starts[i];
+		final int end = start + lengths[i];
+		switch (TYPES[types[i]]) {
+		case NUMBER:
+			return Double.parseDouble(ascii(start, end));
+		case STRING:
+			return text(start + 1, end - 1);
+		default:
+			return null;
+		}
+	}
+
+	private String name(int start, int length) {
+		int hash = 0;
+		for (int i = start; i < start + length; i++) {
+			hash = 31 * hash + source.get(i);
+		}
+		final int mask = names.length - 1;
+		int i = hash & mask;
+		while (Objects.nonNull(names[i])) {
+			final String name = names[i];
+			if (name.length() == length && isNamed(name, start)) {
+				return name;
+			}
+			i = (i + 1) & mask;
+		}
+		final String name = ascii(start, start + length);
+		names[i] = name;
+		if (++nameCount * 2 > names.length) {
+			grow();
+		}
+		return name;
+	}
+
+	private boolean isNamed(String name, int start) {
+		for (int i = 0; i < name.length(); i++) {
+			if (name.charAt(i) != source.get(start + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the source between the offsets decoded as text
+	 */
+	String text(int start, int end) {
+		return new String(bytes(start, end), charset);
+	}
+
+	/**
+	 * The text of identifiers and numbers, which the LoxScanner only makes of ASCII characters.
+	 */
+	private String ascii(int start, int end) {
+		return new String(bytes(start, end), StandardCharsets.ISO_8859_1);
+	}
+
+	private byte[] bytes(int start, int end) {
+		final byte[] bytes = new byte[end - start];
+		final ByteBuffer range = source.duplicate();
+		range.position(start);
+		range.get(bytes);
+		return bytes;
+	}
+
+	private void grow() {
+		final String[] old = names;
+		names = new String[old.length * 2];
+		final int mask = names.length - 1;
+		for (String name : old) {
+			if (Objects.nonNull(name)) {
+				int i = name.hashCode() & mask;
+				while (Objects.nonNull(names[i])) {
+					i = (i + 1) & mask;
+				}
+				names[i] = name;
+			}
+		}
+	}
+}
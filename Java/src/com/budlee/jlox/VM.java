@@ -0,0 +1,716 @@
+package com.budlee.jlox;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A stack based virtual machine running the chunks made by the BytecodeCompiler.
+ *
+ * Locals and temporaries live on one value stack, each call gets a frame recording where its slots start and the
+ * stack is grown when a frame is pushed to hold as many slots as the function was compiled to need.
+ * The values themselves are the same as the tree walking Interpreter uses so output is identical.
+ * Both stacks start small and grow as calls get deeper, until maxFrames is reached and the call fails with a
+ * Lox stack overflow, so the depth a program can reach depends on the limit and the heap, not the thread stack.
+ * A call whose result is returned takes over the frame of the function making it, so tail recursion runs in
+ * constant space.
+ *
+ * The VM is experimental. It runs every program the tree walking Interpreter does with the same output, but it
+ * is not faster: the Interpreter's nodes specialize themselves on the types they see, where the VM's one run loop
+ * is compiled by the JVM for every program at once.
+ */
+public class VM {
+	static final int DEFAULT_MAX_FRAMES = 2048;
+
+	private static class CallFrame {
+		VmClosure closure;
+		/**
+		 * The closure's code and constants, which the run loop switches to when it returns to or calls the frame.
+		 */
+		byte[] code;
+		Object[] constants;
+		int ip;
+		int base;
+	}
+
+	private Object[] stack = new Object[1024];
+	private int stackTop = 0;
+	private CallFrame[] frames = new CallFrame[16];
+	private int frameCount = 0;
+	int maxFrames = DEFAULT_MAX_FRAMES;
+	private final GlobalEnvironment globals = new GlobalEnvironment();
+	private VmUpvalue openUpvalues;
+	/**
+	 * Set while a tail call is made, for the call of a closure to reuse the top frame rather than push one.
+	 */
+	private boolean reuseFrame;
+
+	VM() {
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = new CallFrame();
+		}
+		globals.define("clock", new VmNative(0) {
+			@Override
+			Object call(Object[] arguments) {
+				return (double) System.currentTimeMillis() / 1000.0;
+			}
+		});
+	}
+
+	void interpret(List<Stmt> statements) {
+		final VmFunction script = new BytecodeCompiler(globals).compile(statements);
+		if (Objects.isNull(script)) {
+			return;
+		}
+		final VmClosure closure = new VmClosure(script);
+		push(closure);
+		try {
+			call(closure, 0);
+			run();
+		}
+		catch (RuntimeError error) {
+			Lox.runtimeError(error);
+			resetStack();
+		}
+	}
+
+	private void run() {
+		CallFrame frame = frames[frameCount - 1];
+		byte[] code = frame.code;
+		Object[] constants = frame.constants;
+		int ip = frame.ip;
+		int base = frame.base;
+		// The stack and its top are kept in locals, and written back for the methods a call or return goes through.
+		Object[] stack = this.stack;
+		int sp = stackTop;
+
+		while (true) {
+			switch (code[ip++]) {
+			case OpCode.CONSTANT:
+				stack[sp++] = constants[readShort(code, ip)];
+				ip += 2;
+				break;
+			case OpCode.NIL:
+				stack[sp++] = null;
+				break;
+			case OpCode.TRUE:
+				stack[sp++] = true;
+				break;
+			case OpCode.FALSE:
+				stack[sp++] = false;
+				break;
+			case OpCode.POP:
+				sp--;
+				break;
+			case OpCode.GET_LOCAL:
+				stack[sp++] = stack[base + (code[ip++] & 0xff)];
+				break;
+			case OpCode.SET_LOCAL:
+				stack[base + (code[ip++] & 0xff)] = stack[sp - 1];
+				break;
+			case OpCode.GET_GLOBAL: {
+				final int index = readShort(code, ip);
+				ip += 2;
+				final Object value = globals.valueAt(index);
+				if (Objects.isNull(value)) {
+					frame.ip = ip;
+					throw runtimeError(globals.unsetMessage(index));
+				}
+				stack[sp++] = value;
+				break;
+			}
+			case OpCode.DEFINE_GLOBAL:
+				globals.set(readShort(code, ip), stack[--sp]);
+				ip += 2;
+				break;
+			case OpCode.SET_GLOBAL: {
+				final int index = readShort(code, ip);
+				ip += 2;
+				if (!globals.isDefined(index)) {
+					frame.ip = ip;
+					throw runtimeError(globals.unsetMessage(index));
+				}
+				globals.set(index, stack[sp - 1]);
+				break;
+			}
+			case OpCode.GET_UPVALUE: {
+				final VmUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+				stack[sp++] = upvalue.isClosed ? upvalue.closed : stack[upvalue.slot];
+				break;
+			}
+			case OpCode.SET_UPVALUE: {
+				final VmUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+				if (upvalue.isClosed) {
+					upvalue.closed = stack[sp - 1];
+				}
+				else {
+					stack[upvalue.slot] = stack[sp - 1];
+				}
+				break;
+			}
+			case OpCode.GET_PROPERTY: {
+				final String name = (String) constants[readShort(code, ip)];
+				ip += 2;
+				frame.ip = ip;
+				if (!(stack[sp - 1] instanceof VmInstance)) {
+					throw runtimeError("Only instances have properties.");
+				}
+				final VmInstance instance = (VmInstance) stack[sp - 1];
+				final int slot = instance.shape.slotOf(name);
+				if (slot >= 0) {
+					stack[sp - 1] = instance.fields[slot];
+					break;
+				}
+				stack[sp - 1] = bindMethod(instance.klass, name, instance);
+				break;
+			}
+			case OpCode.SET_PROPERTY: {
+				final String name = (String) constants[readShort(code, ip)];
+				ip += 2;
+				if (!(stack[sp - 2] instanceof VmInstance)) {
+					frame.ip = ip;
+					throw runtimeError("Only instances have fields.");
+				}
+				final Object value = stack[--sp];
+				((VmInstance) stack[--sp]).set(name, value);
+				stack[sp++] = value;
+				break;
+			}
+			case OpCode.GET_SUPER: {
+				final String name = (String) constants[readShort(code, ip)];
+				ip += 2;
+				frame.ip = ip;
+				final VmClass superclass = (VmClass) stack[--sp];
+				stack[sp - 1] = bindMethod(superclass, name, stack[sp - 1]);
+				break;
+			}
+			case OpCode.EQUAL: {
+				final Object b = stack[--sp];
+				stack[sp - 1] = CompiledRuntime.isEqual(stack[sp - 1], b);
+				break;
+			}
+			case OpCode.NOT_EQUAL: {
+				final Object b = stack[--sp];
+				stack[sp - 1] = !CompiledRuntime.isEqual(stack[sp - 1], b);
+				break;
+			}
+			case OpCode.GREATER: {
+				final Object b = stack[--sp];
+				final Object a = stack[sp - 1];
+				if (!(a instanceof Double && b instanceof Double)) {
+					throw numberOperandsError(frame, ip);
+				}
+				stack[sp - 1] = (double) a > (double) b ? Boolean.TRUE : Boolean.FALSE;
+				break;
+			}
+			case OpCode.GREATER_EQUAL: {
+				final Object b = stack[--sp];
+				final Object a = stack[sp - 1];
+				if (!(a instanceof Double && b instanceof Double)) {
+					throw numberOperandsError(frame, ip);
+				}
+				stack[sp - 1] = (double) a >= (double) b ? Boolean.TRUE : Boolean.FALSE;
+				break;
+			}
+			case OpCode.LESS: {
+				final Object b = stack[--sp];
+				final Object a = stack[sp - 1];
+				if (!(a instanceof Double && b instanceof Double)) {
+					throw numberOperandsError(frame, ip);
+				}
+				stack[sp - 1] = (double) a < (double) b ? Boolean.TRUE : Boolean.FALSE;
+				break;
+			}
+			case OpCode.LESS_EQUAL: {
+				final Object b = stack[--sp];
+				final Object a = stack[sp - 1];
+				if (!(a instanceof Double && b instanceof Double)) {
+					throw numberOperandsError(frame, ip);
+				}
+				stack[sp - 1] = (double) a <= (double) b ? Boolean.TRUE : Boolean.FALSE;
+				break;
+			}
+			case OpCode.ADD: {
+				final Object b = stack[--sp];
+				final Object a = stack[sp - 1];
+				if (a instanceof Double && b instanceof Double) {
+					stack[sp - 1] = (double) a + (double) b;
+				}
+				else if (a instanceof String && b instanceof String) {
+					stack[sp - 1] = (String) a + (String) b;
+				}
+				else {
+					frame.ip = ip;
+					throw runtimeError("Operands must be two numbers or two strings");
+				}
+				break;
+			}
+			case OpCode.SUBTRACT: {
+				final Object b = stack[--sp];
+				final Object a = stack[sp - 1];
+				if (!(a instanceof Double && b instanceof Double)) {
+					throw numberOperandsError(frame, ip);
+				}
+				stack[sp - 1] = (double) a - (double) b;
+				break;
+			}
+			case OpCode.MULTIPLY: {
+				final Object b = stack[--sp];
+				final Object a = stack[sp - 1];
+				if (!(a instanceof Double && b instanceof Double)) {
+					throw numberOperandsError(frame, ip);
+				}
+				stack[sp - 1] = (double) a * (double) b;
+				break;
+			}
+			case OpCode.DIVIDE: {
+				final Object b = stack[--sp];
+				final Object a = stack[sp - 1];
+				if (!(a instanceof Double && b instanceof Double)) {
+					throw numberOperandsError(frame, ip);
+				}
+				if ((double) b == 0.0) {
+					frame.ip = ip;
+					throw runtimeError("Divisor can not be zero.");
+				}
+				stack[sp - 1] = (double) a / (double) b;
+				break;
+			}
+			case OpCode.NOT:
+				stack[sp - 1] = !CompiledRuntime.isTruthy(stack[sp - 1]);
+				break;
+			case OpCode.NEGATE:
+				if (!(stack[sp - 1] instanceof Double)) {
+					frame.ip = ip;
+					throw runtimeError("Operand must be a number.");
+				}
+				stack[sp - 1] = -(double) stack[sp - 1];
+				break;
+			case OpCode.PRINT:
+				CompiledRuntime.print(stack[--sp]);
+				break;
+			case OpCode.JUMP:
+				ip += 2 + readShort(code, ip);
+				break;
+			case OpCode.JUMP_IF_FALSE: {
+				// Every Boolean the VM makes is Boolean.TRUE or Boolean.FALSE, so falsiness is two comparisons.
+				final Object condition = stack[sp - 1];
+				if (condition == Boolean.FALSE || Objects.isNull(condition)) {
+					ip += 2 + readShort(code, ip);
+				}
+				else {
+					ip += 2;
+				}
+				break;
+			}
+			case OpCode.LOOP:
+				ip = ip + 2 - readShort(code, ip);
+				break;
+			case OpCode.CALL: {
+				final int calling = frameCount;
+				final int argCount = code[ip++] & 0xff;
+				frame.ip = ip;
+				stackTop = sp;
+				callValue(stack[sp - 1 - argCount], argCount);
+				sp = stackTop;
+				stack = this.stack;
+				// Only a call of a closure pushes a frame to switch to, a native has already left its result.
+				if (frameCount != calling) {
+					frame = frames[frameCount - 1];
+					code = frame.code;
+					constants = frame.constants;
+					ip = 0;
+					base = frame.base;
+				}
+				break;
+			}
+			case OpCode.INVOKE: {
+				final int calling = frameCount;
+				final String name = (String) constants[readShort(code, ip)];
+				final int argCount = code[ip + 2] & 0xff;
+				ip += 3;
+				frame.ip = ip;
+				stackTop = sp;
+				invoke(name, argCount);
+				sp = stackTop;
+				stack = this.stack;
+				// Only a call of a closure pushes a frame to switch to, a native has already left its result.
+				if (frameCount != calling) {
+					frame = frames[frameCount - 1];
+					code = frame.code;
+					constants = frame.constants;
+					ip = 0;
+					base = frame.base;
+				}
+				break;
+			}
+			case OpCode.SUPER_INVOKE: {
+				final int calling = frameCount;
+				final String name = (String) constants[readShort(code, ip)];
+				final int argCount = code[ip + 2] & 0xff;
+				ip += 3;
+				frame.ip = ip;
+				stackTop = sp - 1;
+				invokeFromClass((VmClass) stack[sp - 1], name, argCount);
+				sp = stackTop;
+				stack = this.stack;
+				// Only a call of a closure pushes a frame to switch to, a native has already left its result.
+				if (frameCount != calling) {
+					frame = frames[frameCount - 1];
+					code = frame.code;
+					constants = frame.constants;
+					ip = 0;
+					base = frame.base;
+				}
+				break;
+			}
+			case OpCode.TAIL_CALL: {
+				final int argCount = code[ip++] & 0xff;
+				frame.ip = ip;
+				stackTop = sp;
+				replaceFrame(argCount);
+				callValue(this.stack[stackTop - 1 - argCount], argCount);
+				if (finishTailCall()) {
+					return;
+				}
+				sp = stackTop;
+				stack = this.stack;
+				frame = frames[frameCount - 1];
+				code = frame.code;
+				constants = frame.constants;
+				ip = frame.ip;
+				base = frame.base;
+				break;
+			}
+			case OpCode.TAIL_INVOKE: {
+				final String name = (String) constants[readShort(code, ip)];
+				final int argCount = code[ip + 2] & 0xff;
+				ip += 3;
+				frame.ip = ip;
+				stackTop = sp;
+				replaceFrame(argCount);
+				invoke(name, argCount);
+				if (finishTailCall()) {
+					return;
+				}
+				sp = stackTop;
+				stack = this.stack;
+				frame = frames[frameCount - 1];
+				code = frame.code;
+				constants = frame.constants;
+				ip = frame.ip;
+				base = frame.base;
+				break;
+			}
+			case OpCode.TAIL_SUPER_INVOKE: {
+				final String name = (String) constants[readShort(code, ip)];
+				final int argCount = code[ip + 2] & 0xff;
+				ip += 3;
+				frame.ip = ip;
+				final VmClass superclass = (VmClass) stack[--sp];
+				stackTop = sp;
+				replaceFrame(argCount);
+				invokeFromClass(superclass, name, argCount);
+				if (finishTailCall()) {
+					return;
+				}
+				sp = stackTop;
+				stack = this.stack;
+				frame = frames[frameCount - 1];
+				code = frame.code;
+				constants = frame.constants;
+				ip = frame.ip;
+				base = frame.base;
+				break;
+			}
+			case OpCode.CLOSURE: {
+				final VmFunction function = (VmFunction) constants[readShort(code, ip)];
+				ip += 2;
+				final VmClosure closure = new VmClosure(function);
+				stack[sp++] = closure;
+				for (int i = 0; i < closure.upvalues.length; i++) {
+					final boolean isLocal = code[ip++] == 1;
+					final int index = code[ip++] & 0xff;
+					if (isLocal) {
+						closure.upvalues[i] = captureUpvalue(base + index);
+					}
+					else {
+						closure.upvalues[i] = frame.closure.upvalues[index];
+					}
+				}
+				break;
+			}
+			case OpCode.CLOSE_UPVALUE:
+				stackTop = sp;
+				closeUpvalues(sp - 1);
+				sp--;
+				break;
+			case OpCode.RETURN: {
+				final Object result = stack[--sp];
+				closeUpvalues(base);
+				frameCount--;
+				if (frameCount == 0) {
+					stackTop = 0;
+					return;
+				}
+				for (int i = base; i < sp; i++) {
+					stack[i] = null;
+				}
+				sp = base;
+				stack[sp++] = result;
+				frame = frames[frameCount - 1];
+				code = frame.code;
+				constants = frame.constants;
+				ip = frame.ip;
+				base = frame.base;
+				break;
+			}
+			case OpCode.CLASS:
+				stack[sp++] = new VmClass((String) constants[readShort(code, ip)]);
+				ip += 2;
+				break;
+			case OpCode.INHERIT: {
+				final Object superclass = stack[sp - 2];
+				if (!(superclass instanceof VmClass)) {
+					frame.ip = ip;
+					throw runtimeError("Superclass must be of type class.");
+				}
+				final VmClass subclass = (VmClass) stack[sp - 1];
+				subclass.methods.putAll(((VmClass) superclass).methods);
+				subclass.initializer = ((VmClass) superclass).initializer;
+				sp--;
+				break;
+			}
+			case OpCode.METHOD: {
+				final String name = (String) constants[readShort(code, ip)];
+				ip += 2;
+				final VmClosure method = (VmClosure) stack[--sp];
+				final VmClass klass = (VmClass) stack[sp - 1];
+				klass.methods.put(name, method);
+				if (name.equals("init")) {
+					klass.initializer = method;
+				}
+				break;
+			}
+			}
+		}
+	}
+
+	private void callValue(Object callee, int argCount) {
+		if (callee instanceof VmClosure) {
+			call((VmClosure) callee, argCount);
+			return;
+		}
+		if (callee instanceof VmBoundMethod) {
+			final VmBoundMethod bound = (VmBoundMethod) callee;
+			stack[stackTop - argCount - 1] = bound.receiver;
+			call(bound.method, argCount);
+			return;
+		}
+		if (callee instanceof VmClass) {
+			final VmClass klass = (VmClass) callee;
+			stack[stackTop - argCount - 1] = new VmInstance(klass);
+			if (Objects.nonNull(klass.initializer)) {
+				call(klass.initializer, argCount);
+			}
+			else if (argCount != 0) {
+				throw runtimeError(String.format("Expected 0 arguments but got %s.", argCount));
+			}
+			return;
+		}
+		if (callee instanceof VmNative) {
+			final VmNative function = (VmNative) callee;
+			if (argCount != function.arity) {
+				throw runtimeError(String.format("Expected %s arguments but got %s.", function.arity, argCount));
+			}
+			final Object[] arguments = new Object[argCount];
+			System.arraycopy(stack, stackTop - argCount, arguments, 0, argCount);
+			final Object result = function.call(arguments);
+			stackTop -= argCount + 1;
+			push(result);
+			return;
+		}
+		throw runtimeError("Can only call functions and classes.");
+	}
+
+	/**
+	 * Moves the callee and arguments of a tail call down over the frame making it, whose locals are no longer
+	 * needed once those closures capturing them are closed. The frame itself stays until the call replaces it, so
+	 * an error in making the call is still reported on the caller's line.
+	 */
+	private void replaceFrame(int argCount) {
+		final int base = frames[frameCount - 1].base;
+		closeUpvalues(base);
+		final int start = stackTop - argCount - 1;
+		System.arraycopy(stack, start, stack, base, argCount + 1);
+		for (int i = base + argCount + 1; i < stackTop; i++) {
+			stack[i] = null;
+		}
+		stackTop = base + argCount + 1;
+		reuseFrame = true;
+	}
+
+	/**
+	 * A tail call of anything but a closure leaves its result where the caller's frame began, which is then
+	 * returned from as by RETURN.
+	 *
+	 * @return whether that returned from the script
+	 */
+	private boolean finishTailCall() {
+		if (!reuseFrame) {
+			return false;
+		}
+		reuseFrame = false;
+		frameCount--;
+		if (frameCount == 0) {
+			stackTop = 0;
+			return true;
+		}
+		return false;
+	}
+
+	private void call(VmClosure closure, int argCount) {
+		if (argCount != closure.function.arity) {
+			throw runtimeError(String.format("Expected %s arguments but got %s.", closure.function.arity, argCount));
+		}
+		final int base = stackTop - argCount - 1;
+		reserve(base + closure.function.maxStack);
+		if (reuseFrame) {
+			reuseFrame = false;
+			final CallFrame frame = frames[frameCount - 1];
+			frame.closure = closure;
+			frame.code = closure.function.chunk.code;
+			frame.constants = closure.function.chunk.constants;
+			frame.ip = 0;
+			frame.base = base;
+			return;
+		}
+		// The script's own frame is not a call, so maxFrames calls fit above it as they do in the Interpreter.
+		if (frameCount > maxFrames) {
+			throw runtimeError("Stack overflow.");
+		}
+		if (frameCount == frames.length) {
+			growFrames();
+		}
+		final CallFrame frame = frames[frameCount++];
+		frame.closure = closure;
+		frame.code = closure.function.chunk.code;
+		frame.constants = closure.function.chunk.constants;
+		frame.ip = 0;
+		frame.base = base;
+	}
+
+	/**
+	 * Grows the value stack to hold a frame's locals and temporaries, as many as the BytecodeCompiler counted the
+	 * function to need, so nothing pushed while it runs has to be checked.
+	 */
+	private void reserve(int size) {
+		if (size > stack.length) {
+			stack = Arrays.copyOf(stack, Math.max(stack.length * 2, size));
+		}
+	}
+
+	private void growFrames() {
+		final int length = (int) Math.min(maxFrames + 1L, frames.length * 2L);
+		frames = Arrays.copyOf(frames, length);
+		for (int i = frameCount; i < length; i++) {
+			frames[i] = new CallFrame();
+		}
+	}
+
+	private void invoke(String name, int argCount) {
+		final Object receiver = peek(argCount);
+		if (!(receiver instanceof VmInstance)) {
+			throw runtimeError("Only instances have properties.");
+		}
+		final VmInstance instance = (VmInstance) receiver;
+		final int slot = instance.shape.slotOf(name);
+		if (slot >= 0) {
+			final Object field = instance.fields[slot];
+			stack[stackTop - argCount - 1] = field;
+			callValue(field, argCount);
+			return;
+		}
+		invokeFromClass(instance.klass, name, argCount);
+	}
+
+	private void invokeFromClass(VmClass klass, String name, int argCount) {
+		final VmClosure method = klass.methods.get(name);
+		if (Objects.isNull(method)) {
+			throw runtimeError(String.format("Undefined property '%s'.", name));
+		}
+		call(method, argCount);
+	}
+
+	private VmBoundMethod bindMethod(VmClass klass, String name, Object receiver) {
+		final VmClosure method = klass.methods.get(name);
+		if (Objects.isNull(method)) {
+			throw runtimeError(String.format("Undefined property '%s'.", name));
+		}
+		return new VmBoundMethod(receiver, method);
+	}
+
+	private VmUpvalue captureUpvalue(int slot) {
+		VmUpvalue previous = null;
+		VmUpvalue upvalue = openUpvalues;
+		while (Objects.nonNull(upvalue) && upvalue.slot > slot) {
+			previous = upvalue;
+			upvalue = upvalue.next;
+		}
+		if (Objects.nonNull(upvalue) && upvalue.slot == slot) {
+			return upvalue;
+		}
+		final VmUpvalue created = new VmUpvalue(slot, upvalue);
+		if (Objects.isNull(previous)) {
+			openUpvalues = created;
+		}
+		else {
+			previous.next = created;
+		}
+		return created;
+	}
+
+	private void closeUpvalues(int last) {
+		while (Objects.nonNull(openUpvalues) && openUpvalues.slot >= last) {
+			final VmUpvalue upvalue = openUpvalues;
+			upvalue.closed = stack[upvalue.slot];
+			upvalue.isClosed = true;
+			openUpvalues = upvalue.next;
+		}
+	}
+
+	private void push(Object value) {
+		stack[stackTop++] = value;
+	}
+
+	private Object pop() {
+		return stack[--stackTop];
+	}
+
+	private Object peek(int distance) {
+		return stack[stackTop - 1 - distance];
+	}
+
+	private static int readShort(byte[] code, int ip) {
+		return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+	}
+
+	private RuntimeError numberOperandsError(CallFrame frame, int ip) {
+		frame.ip = ip;
+		return runtimeError("Operands must be a number.");
+	}
+
+	private RuntimeError runtimeError(String message) {
+		final CallFrame frame = frames[frameCount - 1];
+		return new RuntimeError(frame.closure.function.chunk.lines[frame.ip - 1], message);
+	}
+
+	private void resetStack() {
+		reuseFrame = false;
+		// The run loop only writes its top back around calls, so the whole stack is cleared.
+		Arrays.fill(stack, null);
+		stackTop = 0;
+		frameCount = 0;
+		openUpvalues = null;
+	}
+}
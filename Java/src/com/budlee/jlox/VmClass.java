@@ -0,0 +1,20 @@
+package com.budlee.jlox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class VmClass {
+	final String name;
+	final Map<String, VmClosure> methods = new HashMap<>();
+	final Shape shape = new Shape();
+	VmClosure initializer;
+
+	VmClass(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
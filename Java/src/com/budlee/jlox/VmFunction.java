@@ -0,0 +1,27 @@
+package com.budlee.jlox;
+
+/**
+ * A function after compilation. It is never seen by a Lox program, the VM only hands out closures over it.
+ */
+class VmFunction {
+	final String name;
+	final Chunk chunk = new Chunk();
+	int arity = 0;
+	int upvalueCount = 0;
+	/**
+	 * The most slots a frame running the function has in use at once, the callee and its locals included.
+	 */
+	int maxStack = 1;
+
+	VmFunction(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public String toString() {
+		if (name == null) {
+			return "<script>";
+		}
+		return String.format("<fn %s>", name);
+	}
+}
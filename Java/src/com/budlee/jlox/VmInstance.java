@@ -0,0 +1,32 @@
+package com.budlee.jlox;
+
+import java.util.Arrays;
+
+class VmInstance {
+	final VmClass klass;
+	Shape shape;
+	Object[] fields;
+
+	VmInstance(VmClass klass) {
+		this.klass = klass;
+		this.shape = klass.shape;
+		this.fields = shape.newFields();
+	}
+
+	void set(String name, Object value) {
+		int slot = shape.slotOf(name);
+		if (slot < 0) {
+			shape = shape.withField(name);
+			slot = shape.size - 1;
+			if (fields.length < shape.size) {
+				fields = Arrays.copyOf(fields, shape.size);
+			}
+		}
+		fields[slot] = value;
+	}
+
+	@Override
+	public String toString() {
+		return klass.name + " instance";
+	}
+}
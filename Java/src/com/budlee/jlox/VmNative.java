@@ -0,0 +1,16 @@
+package com.budlee.jlox;
+
+abstract class VmNative {
+	final int arity;
+
+	VmNative(int arity) {
+		this.arity = arity;
+	}
+
+	abstract Object call(Object[] arguments);
+
+	@Override
+	public String toString() {
+		return "<native fn>";
+	}
+}
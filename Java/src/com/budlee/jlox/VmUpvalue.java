@@ -0,0 +1,17 @@
+package com.budlee.jlox;
+
+/**
+ * A variable captured by a closure. While the variable is still on the VM stack the upvalue is open and
+ * points at its slot, once the variable goes out of scope the value is moved into the upvalue itself.
+ */
+class VmUpvalue {
+	final int slot;
+	Object closed;
+	boolean isClosed = false;
+	VmUpvalue next;
+
+	VmUpvalue(int slot, VmUpvalue next) {
+		this.slot = slot;
+		this.next = next;
+	}
+}
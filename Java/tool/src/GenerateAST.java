@@ -12,30 +12,30 @@ public class GenerateAST {
 		}
 		String outputDir = args[0];
 		defineAst(outputDir, "Expr", Arrays.asList(
-						"Assign : 	Token name, Expr value",
-						"Binary : 	Expr left, Token operator, Expr right",
-						"Call : 	Expr callee, Token paren, List<Expr> arguments",
-						"Get : 		Expr object, Token name",
+						"Assign : 	Token name, Expr value ; int depth = -1, int slot",
+						"Binary : 	Expr left, Token operator, Expr right ; BinaryOperation operation = BinaryOperation.UNINITIALIZED",
+						"Call : 	Expr callee, Token paren, List<Expr> arguments ; Stmt.Function cachedDeclaration, boolean megamorphic",
+						"Get : 		Expr object, Token name ; PropertyCache cache = new PropertyCache()",
 						"Grouping : Expr expression",
 						"Literal : 	Object value",
 						"Logical : 	Expr left, Token operator, Expr right",
-						"Set : 		Expr object, Token name, Expr value",
-						"Super : 	Token keyword, Token method",
-						"This : 	Token keyword",
-						"Variable : Token name",
+						"Set : 		Expr object, Token name, Expr value ; PropertyCache cache = new PropertyCache()",
+						"Super : 	Token keyword, Token method ; int depth = -1, int slot, int receiverDepth, int receiverSlot, LoxClass cachedSuperclass, LoxFunction cachedMethod",
+						"This : 	Token keyword ; int depth = -1, int slot",
+						"Variable : Token name ; int depth = -1, int slot",
 						"Unary : 	Token operator, Expr right"
 				)
 		);
 		defineAst(outputDir, "Stmt", Arrays.asList(
-						"Block : 		List<Stmt> statements",
-						"Class : 		Token name, Expr.Variable superclass, List<Stmt.Function> methods",
+						"Block : 		List<Stmt> statements ; boolean newFrame, int slotCount, int captureCount, boolean[] reassigned, boolean[] read",
+						"Class : 		Token name, Expr.Variable superclass, List<Stmt.Function> methods ; int slot = -1, boolean captured, List<Expr.Super> superExpressions",
 						"Expression : 	Expr expression",
-						"Function : 	Token name, List<Token> params, List<Stmt> body",
+						"Function : 	Token name, List<Token> params, List<Stmt> body ; int slot = -1, boolean captured, int slotCount, int captureCount, int[] capturedParameters, boolean[] reassigned, boolean[] read, boolean isMethod, volatile CompiledFunction compiled, int calls, ClosureCompiler.StmtNode node",
 						"If : 			Expr condition, Stmt thenBranch, Stmt elseBranch",
 						"Print : 		Expr expression",
-						"Return : 		Token keyword, Expr value",
-						"Var : 			Token name, Expr initializer",
-						"While : 		Expr condition, Stmt body"
+						"Return : 		Token keyword, Expr value ; boolean tailCall",
+						"Var : 			Token name, Expr initializer ; int slot = -1, boolean captured",
+						"While : 		Expr condition, Stmt body ; Stmt.Function enclosingFunction, int iterations, CountedLoop counted"
 				)
 		);
 	}
@@ -52,8 +52,10 @@ public class GenerateAST {
 
 		for (String type : types) {
 			final String className = type.split(":")[0].trim();
-			final String fields = type.split(":")[1].trim();
-			defineType(writer, baseName, className, fields);
+			final String[] fieldGroups = type.split(":")[1].split(";");
+			final String fields = fieldGroups[0].trim();
+			final String resolvedFields = fieldGroups.length > 1 ? fieldGroups[1].trim() : "";
+			defineType(writer, baseName, className, fields, resolvedFields);
 		}
 
 		writer.println();
@@ -75,7 +77,12 @@ public class GenerateAST {
 		writer.println("    }");
 	}
 
-	private static void defineType(PrintWriter writer, String baseName, String className, String fieldsList) {
+	/**
+	 * Fields after the ';' are not part of the constructor, they are left mutable so the
+	 * Resolver and the compilers can fill them in once the tree has been parsed.
+	 */
+	private static void defineType(PrintWriter writer, String baseName, String className, String fieldsList,
+			String resolvedFieldsList) {
 		writer.println(String.format("    static class %s extends %s {",
 				className, baseName
 		));
@@ -104,6 +111,11 @@ public class GenerateAST {
 		for (String field : fields) {
 			writer.println(String.format("    final %s;", field));
 		}
+		if (!resolvedFieldsList.isEmpty()) {
+			for (String field : resolvedFieldsList.split(", ")) {
+				writer.println(String.format("    %s;", field));
+			}
+		}
 		writer.println("    }");
 
 	}